@@ -0,0 +1,75 @@
+/** Compares how quickly the server answers requests on each of its transports.
+    For each transport, we start a server, connect a number of clients to it and
+    have every client make requests as fast as it can from its own thread.
+    The results are printed to the console. **/
+import jediahkatz.gameserver.*;
+import processing.net.*;
+
+final int CLIENTS = 32;
+final int REQUESTS = 200;
+final int ROOM_CAPACITY = 4;
+
+// The server on the PROCESSING transport needs its events forwarded
+GameServer processingServer;
+
+void setup() {
+  int cores = Runtime.getRuntime().availableProcessors();
+  benchmark("PROCESSING", Transport.PROCESSING, 1, 4321);
+  benchmark("NIO", Transport.NIO, 1, 4322);
+  benchmark("NIO x " + cores, Transport.NIO, cores, 4323);
+  benchmark("BLOCKING", Transport.BLOCKING, 1, 4324);
+  exit();
+}
+
+void benchmark(String name, Transport transport, int threads, int port) {
+  GameServer server = new GameServer(this, port, transport, threads);
+  if (transport == Transport.PROCESSING) {
+    processingServer = server;
+  }
+  final GameClient[] clients = new GameClient[CLIENTS];
+  for (int i = 0; i < CLIENTS; i++) {
+    clients[i] = new GameClient(this, "127.0.0.1", port);
+    clients[i].autojoinRoom(ROOM_CAPACITY);
+  }
+
+  // Every client asks for info about its room, over and over
+  Thread[] threads = new Thread[CLIENTS];
+  long start = System.nanoTime();
+  for (int i = 0; i < CLIENTS; i++) {
+    final GameClient client = clients[i];
+    threads[i] = new Thread(new Runnable() {
+      public void run() {
+        for (int j = 0; j < REQUESTS; j++) {
+          client.getRoomInfo(client.roomId());
+        }
+      }
+    });
+    threads[i].start();
+  }
+  for (Thread thread : threads) {
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+    }
+  }
+  float seconds = (System.nanoTime() - start) / 1e9;
+  println(name + ": " + round(CLIENTS * REQUESTS / seconds) + " requests per second");
+
+  for (GameClient client : clients) {
+    client.disconnect();
+  }
+  server.stop();
+  processingServer = null;
+}
+
+void serverEvent(Server s, Client c) {
+  if (processingServer != null) {
+    processingServer.serverEvent(s, c);
+  }
+}
+
+void disconnectEvent(Client c) {
+  if (processingServer != null) {
+    processingServer.disconnectEvent(c);
+  }
+}
@@ -1,7 +1,7 @@
 package jediahkatz.gameserver;
 
 enum ActionCode {
-	/** Register a client with the server and assign it an id. **/
+	/** Register a client with the server and assign it an id, or switch the client to a different framing. **/
 	REGISTER_CLIENT,
 	/** Disconnect the client from the server. **/
 	DISCONNECT,
@@ -11,7 +11,7 @@ enum ActionCode {
 	JOIN_ROOM,
 	/** Remove a client from a room. **/
 	LEAVE_ROOM,
-	/** Add a client to an arbitrary room or create a new one if all rooms are full. **/
+	/** Add a client to a room with the given capacity, or create a new one if all of those are full. **/
 	AUTOJOIN_ROOM,
 	/** Get a RoomInfo object containing data about a room, including attributes. **/
 	GET_ROOM_INFO,
@@ -33,4 +33,18 @@ enum ActionCode {
 	BROADCAST_MESSAGE,
 	/** Get messages sent to this client. **/
 	GET_MESSAGE,
+	/** Get the RoomInfo objects for the rooms whose attributes match a RoomQuery. **/
+	QUERY_ROOMS,
+	/** Start receiving the changes to a room as they happen. **/
+	SUBSCRIBE_ROOM,
+	/** Stop receiving the changes to a room. **/
+	UNSUBSCRIBE_ROOM,
+	/** The changes to a room that a client is subscribed to, pushed by the server. **/
+	ROOM_UPDATE,
+	/** Merge values into the client's part of its room's state. **/
+	UPDATE_STATE,
+	/** Set how many times per second a room sends its state to the clients in it. **/
+	SET_TICK_RATE,
+	/** The state of a room at one of its ticks, pushed by the server. **/
+	ROOM_SNAPSHOT,
 }
@@ -0,0 +1,145 @@
+package jediahkatz.gameserver;
+
+import java.util.HashMap;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import processing.data.JSONObject;
+
+/**
+ * An index of a shard's rooms by the values of their attributes, so that a RoomQuery only has to
+ * look at the rooms that match one of its conditions rather than at every room.
+ * Strings and booleans are indexed by value, and numbers are kept in order so that they can
+ * also be searched by range. Attributes whose values are objects or arrays aren't indexed.
+ * The server tells the index whenever a room's attributes change.
+ * @author jediahkatz
+ */
+class AttributeIndex {
+	// The rooms that have each attribute, by the attribute's key
+	private final HashMap<String, Attribute> attributes = new HashMap<>();
+
+	/** The ids of the rooms that have an attribute, by the attribute's value. **/
+	private static class Attribute {
+		final HashMap<Object, IntSet> byValue = new HashMap<>();
+		final TreeMap<Double, IntSet> byNumber = new TreeMap<>();
+
+		boolean isEmpty() {
+			return byValue.isEmpty() && byNumber.isEmpty();
+		}
+	}
+
+	/**
+	 * Convert an attribute value to the form it is indexed and compared in. Every number
+	 * becomes a Double, so that 3 and 3.0 are equal.
+	 * @return the value, or null if values of its type aren't indexed
+	 */
+	static Object normalize(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		} else if (value instanceof String || value instanceof Boolean) {
+			return value;
+		}
+		return null;
+	}
+
+	/**
+	 * Add a room to the index under one of its attributes.
+	 */
+	void add(int roomId, String key, Object value) {
+		Object normalized = normalize(value);
+		if (normalized == null) {
+			return;
+		}
+		Attribute attribute = attributes.get(key);
+		if (attribute == null) {
+			attribute = new Attribute();
+			attributes.put(key, attribute);
+		}
+		IntSet rooms;
+		if (normalized instanceof Double) {
+			rooms = attribute.byNumber.get(normalized);
+			if (rooms == null) {
+				rooms = new IntSet();
+				attribute.byNumber.put((Double) normalized, rooms);
+			}
+		} else {
+			rooms = attribute.byValue.get(normalized);
+			if (rooms == null) {
+				rooms = new IntSet();
+				attribute.byValue.put(normalized, rooms);
+			}
+		}
+		rooms.add(roomId);
+	}
+
+	/**
+	 * Remove a room from the index under one of its attributes.
+	 * @param value the value the attribute had when the room was added
+	 */
+	void remove(int roomId, String key, Object value) {
+		Object normalized = normalize(value);
+		Attribute attribute = attributes.get(key);
+		if (normalized == null || attribute == null) {
+			return;
+		}
+		IntSet rooms = normalized instanceof Double
+				? attribute.byNumber.get(normalized) : attribute.byValue.get(normalized);
+		if (rooms == null) {
+			return;
+		}
+		rooms.remove(roomId);
+		if (rooms.size() == 0) {
+			if (normalized instanceof Double) {
+				attribute.byNumber.remove(normalized);
+			} else {
+				attribute.byValue.remove(normalized);
+			}
+			if (attribute.isEmpty()) {
+				attributes.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Add a room to the index under all of its attributes.
+	 */
+	void addAll(int roomId, JSONObject attributes) {
+		for (Object key : attributes.keys()) {
+			add(roomId, (String) key, attributes.get((String) key));
+		}
+	}
+
+	/**
+	 * Remove a room from the index under all of its attributes.
+	 */
+	void removeAll(int roomId, JSONObject attributes) {
+		for (Object key : attributes.keys()) {
+			remove(roomId, (String) key, attributes.get((String) key));
+		}
+	}
+
+	/**
+	 * Get the ids of the rooms whose attribute equals a value, as returned by normalize.
+	 * @return the set of ids, or null if there are none. The set must not be changed.
+	 */
+	IntSet equal(String key, Object value) {
+		Attribute attribute = attributes.get(key);
+		if (attribute == null) {
+			return null;
+		}
+		return value instanceof Double ? attribute.byNumber.get(value) : attribute.byValue.get(value);
+	}
+
+	/**
+	 * Get the sets of ids of the rooms whose attribute is a number between min and max,
+	 * inclusive, by the attribute's value.
+	 * @return the sets, which must not be changed
+	 */
+	NavigableMap<Double, IntSet> between(String key, double min, double max) {
+		Attribute attribute = attributes.get(key);
+		if (attribute == null || min > max) {
+			return new TreeMap<>();
+		}
+		return attribute.byNumber.subMap(min, true, max, true);
+	}
+}
@@ -0,0 +1,611 @@
+package jediahkatz.gameserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+/**
+ * Encodes data objects in a compact binary format.
+ * An object is a varint field count followed by its fields. Each field is a key followed by a
+ * tagged value. Keys used by the protocol are sent as a varint index into KEYS (plus one), and
+ * any other key is sent as a zero followed by the key string. Actions, errors and statuses are 
+ * sent as ordinals rather than strings, and ints and longs are sent as zigzag varints.
+ * @author jediahkatz
+ */
+class BinaryCodec implements Codec {
+	// Tags that precede each value
+	private static final int NULL = 0;
+	private static final int INT = 1;
+	private static final int LONG = 2;
+	private static final int FLOAT = 3;
+	private static final int DOUBLE = 4;
+	private static final int TRUE = 5;
+	private static final int FALSE = 6;
+	private static final int STRING = 7;
+	private static final int OBJECT = 8;
+	private static final int ARRAY = 9;
+	// An ActionCode ordinal, for the "action" key
+	private static final int ACTION = 10;
+	// An ErrorCode ordinal, for the "error" key
+	private static final int ERROR = 11;
+	// The "success" and "error" values of the "status" key
+	private static final int STATUS_SUCCESS = 12;
+	private static final int STATUS_ERROR = 13;
+	
+	// Keys used by the protocol. New keys must only ever be added to the end.
+	private static final String[] KEYS = {
+		"action", "status", "error", "clientId", "roomId", "capacity", "size", "attributes", 
+		"clientIds", "roomsInfo", "key", "value", "recipients", "message", "senderId", 
+		"framing", "framings", "codec", "codecs", "filters", "equals", "min", "max", "open",
+		"sort", "descending", "limit", "joined", "left", "removed", "closed",
+		"requestId", "state", "tick", "tickRate",
+	};
+	private static final Map<String, Integer> KEY_INDEX = indexOf(KEYS);
+	private static final ActionCode[] ACTIONS = ActionCode.values();
+	private static final Map<String, Integer> ACTION_INDEX = indexOf(names(ACTIONS));
+	private static final ErrorCode[] ERRORS = ErrorCode.values();
+	private static final Map<String, Integer> ERROR_INDEX = indexOf(names(ERRORS));
+
+	@Override
+	public String name() {
+		return "BINARY";
+	}
+
+	@Override
+	public byte[] encode(JSONObject data) {
+		Output out = new Output();
+		writeObject(out, data);
+		return Arrays.copyOf(out.buf, out.pos);
+	}
+
+	@Override
+	public JSONObject decode(byte[] buf, int offset, int length) {
+		return decode(buf, offset, length, null, null);
+	}
+
+	@Override
+	public JSONObject decode(byte[] buf, int offset, int length, String rawKey, RawValue[] raw) {
+		Input in = new Input(buf, offset, offset + length);
+		JSONObject data = readObject(in, rawKey, raw);
+		if (in.pos != in.end) {
+			throw new IllegalArgumentException("Unexpected data after object");
+		}
+		return data;
+	}
+
+	@Override
+	public byte[] encode(JSONObject data, String rawKey, RawValue raw) {
+		Output out = new Output();
+		out.writeVarint(data.size() + 1);
+		writeFields(out, data);
+		writeKey(out, rawKey);
+		// The raw value already starts with its tag
+		out.writeBytes(raw.bytes);
+		return Arrays.copyOf(out.buf, out.pos);
+	}
+
+	/**
+	 * Wrap an object that was encoded by encode(JSONObject) as a raw value, which also starts with its tag.
+	 * @param buf the array containing the encoded object
+	 * @param offset the index of the first byte of the encoded object
+	 * @param length the number of bytes in the encoded object
+	 */
+	static RawValue rawObject(byte[] buf, int offset, int length) {
+		byte[] bytes = new byte[length + 1];
+		bytes[0] = OBJECT;
+		System.arraycopy(buf, offset, bytes, 1, length);
+		return new RawValue(Codec.BINARY, bytes);
+	}
+
+	@Override
+	public byte[] withField(byte[] payload, String key, int value) {
+		// The new field goes right after the number of fields, which goes up by one
+		Input in = new Input(payload, 0, payload.length);
+		int count = in.readVarint();
+		Output out = new Output();
+		out.writeVarint(count + 1);
+		writeKey(out, key);
+		writeValue(out, key, value);
+		byte[] bytes = Arrays.copyOf(out.buf, out.pos + payload.length - in.pos);
+		System.arraycopy(payload, in.pos, bytes, out.pos, payload.length - in.pos);
+		return bytes;
+	}
+	
+	@Override
+	public JSONObject decodeRaw(RawValue raw) {
+		Input in = new Input(raw.bytes, 0, raw.bytes.length);
+		if (in.readByte() != OBJECT) {
+			throw new IllegalArgumentException("Raw value is not an object");
+		}
+		return readObject(in, null, null);
+	}
+	
+	@Override
+	public Object decodeRawField(RawValue raw, String key) {
+		Input in = new Input(raw.bytes, 0, raw.bytes.length);
+		if (in.readByte() != OBJECT) {
+			throw new IllegalArgumentException("Raw value is not an object");
+		}
+		Integer index = KEY_INDEX.get(key);
+		byte[] keyBytes = index == null ? key.getBytes(StandardCharsets.UTF_8) : null;
+		int size = in.readVarint();
+		for (int i=0; i<size; i++) {
+			if (matchKey(in, index, keyBytes)) {
+				return readValue(in);
+			}
+			skipValue(in);
+		}
+		return null;
+	}
+	
+	private void writeObject(Output out, JSONObject object) {
+		out.writeVarint(object.size());
+		writeFields(out, object);
+	}
+	
+	private void writeFields(Output out, JSONObject object) {
+		for (Object k : object.keys()) {
+			String key = (String) k;
+			writeKey(out, key);
+			writeValue(out, key, object.get(key));
+		}
+	}
+	
+	private void writeKey(Output out, String key) {
+		Integer index = KEY_INDEX.get(key);
+		if (index != null) {
+			out.writeVarint(index + 1);
+		} else {
+			out.writeVarint(0);
+			out.writeString(key);
+		}
+	}
+	
+	private void writeArray(Output out, JSONArray array) {
+		int size = array.size();
+		out.writeVarint(size);
+		for (int i=0; i<size; i++) {
+			writeValue(out, null, array.get(i));
+		}
+	}
+	
+	/**
+	 * Write a tagged value.
+	 * @param key the key the value belongs to, or null if it is in an array
+	 */
+	private void writeValue(Output out, String key, Object value) {
+		if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeVarint(zigzag((int) value));
+		} else if (value instanceof String) {
+			String str = (String) value;
+			Integer ordinal;
+			if ("action".equals(key) && (ordinal = ACTION_INDEX.get(str)) != null) {
+				out.writeByte(ACTION);
+				out.writeVarint(ordinal);
+			} else if ("error".equals(key) && (ordinal = ERROR_INDEX.get(str)) != null) {
+				out.writeByte(ERROR);
+				out.writeVarint(ordinal);
+			} else if ("status".equals(key) && str.equals("success")) {
+				out.writeByte(STATUS_SUCCESS);
+			} else if ("status".equals(key) && str.equals("error")) {
+				out.writeByte(STATUS_ERROR);
+			} else {
+				out.writeByte(STRING);
+				out.writeString(str);
+			}
+		} else if (value instanceof Boolean) {
+			out.writeByte((boolean) value ? TRUE : FALSE);
+		} else if (value instanceof JSONObject) {
+			out.writeByte(OBJECT);
+			writeObject(out, (JSONObject) value);
+		} else if (value instanceof JSONArray) {
+			out.writeByte(ARRAY);
+			writeArray(out, (JSONArray) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFixed(Float.floatToIntBits((float) value), 4);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeFixed(Double.doubleToLongBits((double) value), 8);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeVarlong(zigzag((long) value));
+		} else {
+			out.writeByte(NULL);
+		}
+	}
+	
+	/**
+	 * Read an object.
+	 * @param rawKey a key whose value should be kept encoded if it is an object, or null
+	 * @param raw an array of length one, whose element is set to the undecoded value, if any
+	 */
+	private JSONObject readObject(Input in, String rawKey, RawValue[] raw) {
+		JSONObject object = new JSONObject();
+		int size = in.readVarint();
+		for (int i=0; i<size; i++) {
+			String key = readKey(in);
+			if (key.equals(rawKey) && in.peekByte() == OBJECT) {
+				int start = in.pos;
+				skipValue(in);
+				raw[0] = new RawValue(this, Arrays.copyOfRange(in.buf, start, in.pos));
+				continue;
+			}
+			
+			int tag = in.readByte();
+			switch (tag) {
+			case NULL:
+				// JSONObject has no setter for null, so leave the key out
+				break;
+			case INT:
+				object.setInt(key, unzigzag(in.readVarint()));
+				break;
+			case LONG:
+				object.setLong(key, unzigzag(in.readVarlong()));
+				break;
+			case FLOAT:
+				object.setFloat(key, Float.intBitsToFloat((int) in.readFixed(4)));
+				break;
+			case DOUBLE:
+				object.setDouble(key, Double.longBitsToDouble(in.readFixed(8)));
+				break;
+			case TRUE:
+			case FALSE:
+				object.setBoolean(key, tag == TRUE);
+				break;
+			case STRING:
+				object.setString(key, in.readString());
+				break;
+			case OBJECT:
+				object.setJSONObject(key, readObject(in, null, null));
+				break;
+			case ARRAY:
+				object.setJSONArray(key, readArray(in));
+				break;
+			default:
+				object.setString(key, readConstant(in, tag));
+			}
+		}
+		return object;
+	}
+	
+	private JSONArray readArray(Input in) {
+		JSONArray array = new JSONArray();
+		int size = in.readVarint();
+		for (int i=0; i<size; i++) {
+			int tag = in.readByte();
+			switch (tag) {
+			case NULL:
+				// JSONArray has no way to append null, so leave the element out
+				break;
+			case INT:
+				array.append(unzigzag(in.readVarint()));
+				break;
+			case LONG:
+				array.append(unzigzag(in.readVarlong()));
+				break;
+			case FLOAT:
+				array.append(Float.intBitsToFloat((int) in.readFixed(4)));
+				break;
+			case DOUBLE:
+				array.append(Double.longBitsToDouble(in.readFixed(8)));
+				break;
+			case TRUE:
+			case FALSE:
+				array.append(tag == TRUE);
+				break;
+			case STRING:
+				array.append(in.readString());
+				break;
+			case OBJECT:
+				array.append(readObject(in, null, null));
+				break;
+			case ARRAY:
+				array.append(readArray(in));
+				break;
+			default:
+				array.append(readConstant(in, tag));
+			}
+		}
+		return array;
+	}
+	
+	private String readKey(Input in) {
+		int index = in.readVarint();
+		if (index == 0) {
+			return in.readString();
+		} else if (index > 0 && index <= KEYS.length) {
+			return KEYS[index - 1];
+		}
+		throw new IllegalArgumentException("Unknown key index: " + index);
+	}
+	
+	/**
+	 * Read a key and return true if it is the one being looked for, without making a string of it.
+	 * @param index the key's index in KEYS, or null if it isn't one of them
+	 * @param keyBytes the key in UTF-8, if it isn't one of KEYS
+	 */
+	private boolean matchKey(Input in, Integer index, byte[] keyBytes) {
+		int keyIndex = in.readVarint();
+		if (keyIndex != 0) {
+			return index != null && keyIndex == index + 1;
+		}
+		int length = in.readVarint();
+		int start = in.pos;
+		in.skip(length);
+		if (keyBytes == null || length != keyBytes.length) {
+			return false;
+		}
+		for (int i=0; i<length; i++) {
+			if (in.buf[start + i] != keyBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Read a tagged value.
+	 * @return the value as a String, Boolean, Integer, Long, Double, JSONObject or JSONArray,
+	 *         or JSONObject.NULL
+	 */
+	private Object readValue(Input in) {
+		int tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return JSONObject.NULL;
+		case INT:
+			return unzigzag(in.readVarint());
+		case LONG:
+			return unzigzag(in.readVarlong());
+		case FLOAT:
+			return (double) Float.intBitsToFloat((int) in.readFixed(4));
+		case DOUBLE:
+			return Double.longBitsToDouble(in.readFixed(8));
+		case TRUE:
+		case FALSE:
+			return tag == TRUE;
+		case STRING:
+			return in.readString();
+		case OBJECT:
+			return readObject(in, null, null);
+		case ARRAY:
+			return readArray(in);
+		default:
+			return readConstant(in, tag);
+		}
+	}
+	
+	/**
+	 * Skip over a tagged value without decoding it.
+	 */
+	private void skipValue(Input in) {
+		int tag = in.readByte();
+		switch (tag) {
+		case INT:
+		case ACTION:
+		case ERROR:
+			in.readVarint();
+			break;
+		case LONG:
+			in.readVarlong();
+			break;
+		case FLOAT:
+			in.skip(4);
+			break;
+		case DOUBLE:
+			in.skip(8);
+			break;
+		case STRING:
+			in.skip(in.readVarint());
+			break;
+		case OBJECT:
+			int fields = in.readVarint();
+			for (int i=0; i<fields; i++) {
+				readKey(in);
+				skipValue(in);
+			}
+			break;
+		case ARRAY:
+			int elements = in.readVarint();
+			for (int i=0; i<elements; i++) {
+				skipValue(in);
+			}
+			break;
+		case NULL:
+		case TRUE:
+		case FALSE:
+		case STATUS_SUCCESS:
+		case STATUS_ERROR:
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown tag: " + tag);
+		}
+	}
+	
+	/**
+	 * Read a value that was sent as an ordinal or status tag, and return it as a string.
+	 */
+	private String readConstant(Input in, int tag) {
+		switch (tag) {
+		case ACTION:
+			return ACTIONS[in.readOrdinal(ACTIONS.length)].name();
+		case ERROR:
+			return ERRORS[in.readOrdinal(ERRORS.length)].name();
+		case STATUS_SUCCESS:
+			return "success";
+		case STATUS_ERROR:
+			return "error";
+		default:
+			throw new IllegalArgumentException("Unknown tag: " + tag);
+		}
+	}
+	
+	private static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+	
+	private static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+	
+	private static int unzigzag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+	
+	private static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+	
+	private static String[] names(Enum<?>[] values) {
+		String[] names = new String[values.length];
+		for (int i=0; i<values.length; i++) {
+			names[i] = values[i].name();
+		}
+		return names;
+	}
+	
+	private static Map<String, Integer> indexOf(String[] strings) {
+		Map<String, Integer> index = new HashMap<>();
+		for (int i=0; i<strings.length; i++) {
+			index.put(strings[i], i);
+		}
+		return index;
+	}
+	
+	/** A growable buffer to encode into. **/
+	private static class Output {
+		byte[] buf = new byte[64];
+		int pos = 0;
+		
+		void reserve(int bytes) {
+			if (pos + bytes > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes));
+			}
+		}
+		
+		void writeByte(int b) {
+			reserve(1);
+			buf[pos++] = (byte) b;
+		}
+		
+		void writeVarint(int value) {
+			reserve(5);
+			pos = Varint.write(value, buf, pos);
+		}
+		
+		void writeVarlong(long value) {
+			reserve(10);
+			while ((value & ~0x7fL) != 0) {
+				buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			buf[pos++] = (byte) value;
+		}
+		
+		void writeFixed(long value, int bytes) {
+			reserve(bytes);
+			for (int i=0; i<bytes; i++) {
+				buf[pos++] = (byte) (value >>> (8 * i));
+			}
+		}
+		
+		void writeString(String str) {
+			byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length);
+			writeBytes(bytes);
+		}
+		
+		void writeBytes(byte[] bytes) {
+			reserve(bytes.length);
+			System.arraycopy(bytes, 0, buf, pos, bytes.length);
+			pos += bytes.length;
+		}
+	}
+	
+	/** A bounds-checked view of the bytes being decoded. **/
+	private static class Input {
+		final byte[] buf;
+		int pos;
+		final int end;
+		
+		Input(byte[] buf, int pos, int end) {
+			this.buf = buf;
+			this.pos = pos;
+			this.end = end;
+		}
+		
+		int readByte() {
+			if (pos >= end) {
+				throw new IllegalArgumentException("Truncated data");
+			}
+			return buf[pos++] & 0xff;
+		}
+		
+		int peekByte() {
+			if (pos >= end) {
+				throw new IllegalArgumentException("Truncated data");
+			}
+			return buf[pos] & 0xff;
+		}
+		
+		void skip(int bytes) {
+			if (bytes < 0 || bytes > end - pos) {
+				throw new IllegalArgumentException("Truncated data");
+			}
+			pos += bytes;
+		}
+		
+		int readVarint() {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = readByte();
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+		
+		long readVarlong() {
+			long value = 0;
+			for (int shift = 0; shift < 70; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+		
+		int readOrdinal(int count) {
+			int ordinal = readVarint();
+			if (ordinal < 0 || ordinal >= count) {
+				throw new IllegalArgumentException("Unknown ordinal: " + ordinal);
+			}
+			return ordinal;
+		}
+		
+		long readFixed(int bytes) {
+			long value = 0;
+			for (int i=0; i<bytes; i++) {
+				value |= (long) readByte() << (8 * i);
+			}
+			return value;
+		}
+		
+		String readString() {
+			int length = readVarint();
+			int start = pos;
+			skip(length);
+			return new String(buf, start, length, StandardCharsets.UTF_8);
+		}
+	}
+}
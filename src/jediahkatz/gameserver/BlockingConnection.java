@@ -0,0 +1,108 @@
+package jediahkatz.gameserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A connection backed by a blocking Socket, with a thread of its own for reading and another
+ * for writing. The reading thread waits for data and decodes each request without holding
+ * up other clients, but handles it while holding the lock of one of the server's shards,
+ * which other clients share. Nothing may wait while handling a request, or every client
+ * of that shard waits too. The writing thread waits for frames to be queued and writes
+ * them out, so a slow client only holds up its own thread.
+ * @author jediahkatz
+ */
+class BlockingConnection extends Connection {
+	private final BlockingServer server;
+	private final Socket socket;
+	private final ReadableByteChannel in;
+	private final OutputStream out;
+	// Released whenever there are queued frames for the writing thread to write
+	private final Semaphore writable = new Semaphore(0);
+	private volatile boolean broken = false;
+
+	BlockingConnection(BlockingServer server, Socket socket) throws IOException {
+		this.server = server;
+		this.socket = socket;
+		in = Channels.newChannel(socket.getInputStream());
+		out = socket.getOutputStream();
+	}
+
+	/**
+	 * Read and handle frames until the client closes the connection.
+	 */
+	void readLoop() {
+		try {
+			while (!broken && decoder.fill(in) >= 0) {
+				// Frames are handled one at a time, since a frame may change the framing of the next
+				while (decoder.next()) {
+					server.received(this, decoder.array(), decoder.frameStart(), decoder.frameLength());
+				}
+			}
+		} catch (IOException | IllegalStateException e) {
+		}
+		fail();
+	}
+
+	/**
+	 * Write queued frames whenever there are some, until the connection is closed.
+	 */
+	void writeLoop() {
+		try {
+			while (true) {
+				writable.acquire();
+				writable.drainPermits();
+				if (isClosed()) {
+					return;
+				}
+				byte[] data;
+				shard.lock();
+				try {
+					data = outbound.drain();
+					shard.queuedBytes -= data.length;
+					shard.bytesWritten += data.length;
+				} finally {
+					shard.unlock();
+				}
+				out.write(data);
+				out.flush();
+			}
+		} catch (IOException | InterruptedException e) {
+			fail();
+		}
+	}
+
+	/**
+	 * Wake up the writing thread. The frames are written, and counted, from that thread.
+	 * @return zero, since nothing is written here
+	 */
+	@Override
+	long flush() {
+		writable.release();
+		return 0;
+	}
+
+	/**
+	 * Mark this connection as broken and have the server clean up after the client.
+	 */
+	void fail() {
+		if (!broken) {
+			broken = true;
+			server.closeLater(this);
+		}
+	}
+
+	@Override
+	void closeSocket() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		// Let the writing thread see that it's closed
+		writable.release();
+	}
+}
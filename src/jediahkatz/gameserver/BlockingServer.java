@@ -0,0 +1,132 @@
+package jediahkatz.gameserver;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import processing.data.JSONObject;
+
+/**
+ * Runs in its own thread and accepts clients over blocking sockets, giving each client
+ * its own threads. Where the JVM supports them, these are virtual threads, which cost
+ * little more than the connection itself, so even a large number of idle clients is cheap.
+ * The server's state is split into shards that are shared by every thread, each guarded
+ * by its own lock, so clients only wait on each other when they use the same shard.
+ * @author jediahkatz
+ */
+class BlockingServer implements Runnable {
+	// Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), or null before Java 21
+	private static final Method OF_VIRTUAL;
+	private static final Method UNSTARTED;
+	static {
+		Method ofVirtual = null;
+		Method unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		} catch (ReflectiveOperationException e) {
+			// Fall back to platform threads
+		}
+		OF_VIRTUAL = ofVirtual;
+		UNSTARTED = unstarted;
+	}
+
+	private final GameServer server;
+	private final Shard[] shards;
+	private final ServerSocket acceptor;
+	private int nextShard = 0;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param server the server to dispatch events to
+	 * @param shards the shards to deal clients out to, which must already be shared
+	 * @param port the port to accept clients on
+	 */
+	BlockingServer(GameServer server, Shard[] shards, int port) throws IOException {
+		this.server = server;
+		this.shards = shards;
+		acceptor = new ServerSocket(port);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!shutdown) {
+				Socket socket = acceptor.accept();
+				socket.setTcpNoDelay(true);
+				BlockingConnection connection = new BlockingConnection(this, socket);
+				Shard shard = shards[nextShard];
+				nextShard = (nextShard + 1) % shards.length;
+				shard.post(() -> server.connected(shard, connection));
+				start(connection::readLoop);
+				start(connection::writeLoop);
+			}
+		} catch (IOException e) {
+			if (!shutdown) {
+				throw new RuntimeException("Server failed: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Handle a complete frame of data received from a client. The frame is decoded on the
+	 * connection's own thread, and only handling it holds the lock of the client's shard.
+	 * This returns once the frame has been handled, so the next frame is decoded with the
+	 * codec that this one may have switched to.
+	 */
+	void received(BlockingConnection connection, byte[] buf, int offset, int length) {
+		RawValue[] message = new RawValue[1];
+		JSONObject data = server.getData(connection, buf, offset, length, message);
+		if (data != null) {
+			connection.shard.post(() -> server.received(connection, data, message[0]));
+		}
+	}
+
+	/**
+	 * Close a connection and disconnect its client.
+	 */
+	void closeLater(BlockingConnection connection) {
+		connection.shard.post(() -> {
+			connection.close();
+			server.disconnected(connection);
+		});
+	}
+
+	/**
+	 * Start a task on a new virtual thread, or a new daemon thread if virtual threads
+	 * aren't supported.
+	 */
+	static void start(Runnable task) {
+		if (OF_VIRTUAL != null) {
+			try {
+				Thread thread = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+				thread.start();
+				return;
+			} catch (ReflectiveOperationException e) {
+				// Fall back to a platform thread
+			}
+		}
+		Thread thread = new Thread(task);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		shutdown = true;
+		try {
+			acceptor.close();
+		} catch (IOException e) {
+		}
+		for (Shard shard : shards) {
+			shard.post(() -> {
+				for (int i = 0; i < shard.clients.slots(); i++) {
+					Connection connection = shard.clients.valueAt(i);
+					if (connection != null) {
+						connection.close();
+					}
+				}
+			});
+		}
+	}
+}
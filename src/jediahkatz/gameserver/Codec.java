@@ -0,0 +1,106 @@
+package jediahkatz.gameserver;
+
+import processing.data.JSONObject;
+
+/**
+ * Converts the data objects sent between clients and the server to and from bytes.
+ * Every connection starts out using JSON, and the client may ask to switch when it registers.
+ * @author jediahkatz
+ */
+interface Codec {
+	/** Human-readable JSON text. Supported by all clients. **/
+	Codec JSON = new JsonCodec();
+	/** A compact binary encoding. Only allowed with length-prefixed framing. **/
+	Codec BINARY = new BinaryCodec();
+	
+	/**
+	 * Get the name that identifies this codec when negotiating.
+	 */
+	String name();
+	
+	/**
+	 * Encode a data object.
+	 * @param data the object to encode
+	 * @return the encoded bytes
+	 */
+	byte[] encode(JSONObject data);
+	
+	/**
+	 * Decode a data object.
+	 * @param buf the array containing the encoded object
+	 * @param offset the index of the first byte of the encoded object
+	 * @param length the number of bytes in the encoded object
+	 * @return the decoded object
+	 * @throws RuntimeException if the bytes are not a valid encoded object
+	 */
+	JSONObject decode(byte[] buf, int offset, int length);
+	
+	/**
+	 * Decode a data object, except for the value of one key, which is kept in its encoded form
+	 * if it is an object.
+	 * @param buf the array containing the encoded object
+	 * @param offset the index of the first byte of the encoded object
+	 * @param length the number of bytes in the encoded object
+	 * @param rawKey the key whose value shouldn't be decoded
+	 * @param raw an array of length one, whose element is set to the undecoded value, if any
+	 * @return the decoded object, without the raw key if its value was kept encoded
+	 * @throws RuntimeException if the bytes are not a valid encoded object
+	 */
+	JSONObject decode(byte[] buf, int offset, int length, String rawKey, RawValue[] raw);
+	
+	/**
+	 * Encode a data object along with an extra key whose value is already encoded.
+	 * The value is copied into the result as-is.
+	 * @param data the object to encode
+	 * @param rawKey the extra key
+	 * @param raw the extra key's value, which must have been encoded with this codec
+	 * @return the encoded bytes
+	 */
+	byte[] encode(JSONObject data, String rawKey, RawValue raw);
+	
+	/**
+	 * Add an int field to an encoded object, without decoding it.
+	 * @param payload the encoded object, which is left as it is
+	 * @param key the key of the field, which the object must not have already
+	 * @param value the value of the field
+	 * @return the encoded object with the field added
+	 */
+	byte[] withField(byte[] payload, String key, int value);
+	
+	/**
+	 * Decode an object value that was kept in its encoded form.
+	 * @param raw the value, which must have been encoded with this codec
+	 * @return the decoded object
+	 */
+	JSONObject decodeRaw(RawValue raw);
+	
+	/**
+	 * Find the value of one key of an object value that was kept in its encoded form, skipping
+	 * over the other keys without decoding them.
+	 * @param raw the value, which must have been encoded with this codec
+	 * @param key the key to look for
+	 * @return the value as a String, Boolean, Integer, Long, Double, JSONObject or JSONArray,
+	 *         JSONObject.NULL, or null if the object doesn't have the key
+	 */
+	Object decodeRawField(RawValue raw, String key);
+	
+	/**
+	 * Get all the available codecs.
+	 */
+	static Codec[] values() {
+		return new Codec[] { JSON, BINARY };
+	}
+	
+	/**
+	 * Get the codec with the given name.
+	 * @throws IllegalArgumentException if no codec has that name
+	 */
+	static Codec forName(String name) {
+		for (Codec codec : values()) {
+			if (codec.name().equals(name)) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("No codec named: " + name);
+	}
+}
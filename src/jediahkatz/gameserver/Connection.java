@@ -0,0 +1,60 @@
+package jediahkatz.gameserver;
+
+import java.util.ArrayDeque;
+
+/**
+ * A connection between the server and a single client, independent of the transport it uses.
+ * @author jediahkatz
+ */
+abstract class Connection {
+	// The id assigned to the client on this connection, or -1 if it hasn't been registered
+	int clientId = -1;
+	// The shard that owns this connection. Only its thread may use the connection.
+	Shard shard;
+	// The room the client is in, which may belong to another shard, or -1 if it isn't in one,
+	// or JOINING while the room's shard hasn't answered a request to join one yet
+	int roomId = -1;
+	static final int JOINING = -2;
+	// Requests to leave the room that arrived while joining it, to be handled once it is joined
+	final ArrayDeque<Runnable> afterJoin = new ArrayDeque<>();
+	// The rooms the client is subscribed to, which may belong to other shards
+	final IntSet subscriptions = new IntSet();
+	// How frames sent to the client are separated, and how data objects are encoded within frames
+	// in both directions. These are only set by the owning shard during the handshake, but replies
+	// from other shards read them, so they are volatile.
+	volatile Framing framing = Framing.DELIMITED;
+	volatile Codec codec = Codec.JSON;
+	// Splits the data received from the client into frames
+	final FrameDecoder decoder = new FrameDecoder();
+	// Frames waiting to be written to the client
+	final OutboundQueue outbound = new OutboundQueue();
+	private boolean closed = false;
+	
+	/**
+	 * Write as much of the outbound queue to the client as possible.
+	 * @return the number of bytes written
+	 */
+	abstract long flush();
+	
+	/**
+	 * Close this connection, if it isn't closed already.
+	 */
+	void close() {
+		if (!closed) {
+			closed = true;
+			closeSocket();
+		}
+	}
+	
+	/**
+	 * Return true if this connection has been closed.
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Close the underlying socket.
+	 */
+	abstract void closeSocket();
+}
@@ -0,0 +1,205 @@
+package jediahkatz.gameserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs in its own thread and relays unreliable messages between clients over UDP, alongside
+ * whichever transport the server uses for everything else. Datagrams may be lost, duplicated
+ * or reordered, and are never sent again, so this is only suitable for data that is soon
+ * replaced, like positions. Each datagram carries its sender's sequence number, so that
+ * recipients can tell which one is newest.
+ * <p>
+ * A client can only send datagrams as itself. The server gives each client a random token
+ * when it registers, and drops any datagram that doesn't carry its sender's token.
+ * Datagrams for a client are sent to wherever its last valid datagram came from.
+ * <p>
+ * Every datagram starts with a kind byte. Datagrams from clients then have the client's id,
+ * its token and a sequence number, as big-endian ints. Datagrams to clients then have the
+ * sender's id and its sequence number. Messages end with their body, encoded with the BINARY codec.
+ * @author jediahkatz
+ */
+class DatagramRelay implements Runnable {
+	/** Announces a client's address to the server, which answers with the same kind. **/
+	static final byte HELLO = 0;
+	/** A message for some clients, with the number of recipients as a short and their ids before the body. **/
+	static final byte SEND = 1;
+	/** A message for every other client in the sender's room. **/
+	static final byte BROADCAST = 2;
+	/** A message relayed to a client. **/
+	static final byte MESSAGE = 3;
+	// The most bytes in a datagram, which is few enough not to be fragmented on most networks
+	static final int MAX_DATAGRAM = 1200;
+	// The bytes before the rest of a datagram from a client
+	static final int CLIENT_HEADER = 13;
+	// The bytes before the body of a message to a client
+	static final int MESSAGE_HEADER = 9;
+
+	private final GameServer server;
+	private final DatagramChannel channel;
+	// The token and address of every registered client, by id
+	private final ConcurrentHashMap<Integer, Peer> peers = new ConcurrentHashMap<>();
+	private final SecureRandom random = new SecureRandom();
+	private volatile boolean shutdown = false;
+	// Metrics, only written by this thread
+	volatile long datagramsReceived = 0;
+	volatile long datagramsRejected = 0;
+
+	/** The token a client has to send, and where to send its datagrams. **/
+	static class Peer {
+		final int token;
+		// Null until the client's first datagram arrives
+		volatile SocketAddress address;
+
+		Peer(int token) {
+			this.token = token;
+		}
+	}
+
+	/**
+	 * @param server the server whose rooms broadcasts are sent to
+	 * @param port the UDP port to receive datagrams on
+	 */
+	DatagramRelay(GameServer server, int port) throws IOException {
+		this.server = server;
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+	}
+
+	/**
+	 * Allow a client to send datagrams. This may be called from any thread.
+	 * @return the token that the client's datagrams must carry
+	 */
+	int register(int clientId) {
+		int token = random.nextInt();
+		peers.put(clientId, new Peer(token));
+		return token;
+	}
+
+	/**
+	 * Stop relaying datagrams from and to a client. This may be called from any thread.
+	 */
+	void unregister(int clientId) {
+		peers.remove(clientId);
+	}
+
+	@Override
+	public void run() {
+		// One byte more than allowed, so that datagrams that are too large can be told apart
+		ByteBuffer in = ByteBuffer.allocate(MAX_DATAGRAM + 1);
+		while (!shutdown) {
+			SocketAddress from;
+			in.clear();
+			try {
+				from = channel.receive(in);
+			} catch (IOException e) {
+				if (!shutdown) {
+					throw new RuntimeException("Relay failed: " + e.getMessage(), e);
+				}
+				return;
+			}
+			in.flip();
+			datagramsReceived++;
+			if (!relay(in, from)) {
+				datagramsRejected++;
+			}
+		}
+	}
+
+	/**
+	 * Relay a datagram received from a client.
+	 * @return false if the datagram was malformed or not from who it claims to be
+	 */
+	private boolean relay(ByteBuffer in, SocketAddress from) {
+		if (in.remaining() < CLIENT_HEADER || in.remaining() > MAX_DATAGRAM) {
+			return false;
+		}
+		byte kind = in.get();
+		int clientId = in.getInt();
+		int token = in.getInt();
+		int sequence = in.getInt();
+		Peer peer = peers.get(clientId);
+		if (peer == null || peer.token != token) {
+			return false;
+		}
+		// Follow the client if its address changes, such as when a router remaps its port
+		peer.address = from;
+		switch (kind) {
+		case HELLO:
+			ByteBuffer hello = ByteBuffer.allocate(1);
+			hello.put(HELLO);
+			hello.flip();
+			send(hello, from);
+			return true;
+		case SEND:
+			if (in.remaining() < 2) {
+				return false;
+			}
+			int count = in.getShort() & 0xFFFF;
+			if (in.remaining() < count * 4) {
+				return false;
+			}
+			int[] recipientIds = new int[count];
+			for (int i = 0; i < count; i++) {
+				recipientIds[i] = in.getInt();
+			}
+			ByteBuffer message = message(clientId, sequence, in);
+			for (int recipientId : recipientIds) {
+				sendTo(recipientId, message);
+			}
+			return true;
+		case BROADCAST:
+			server.broadcastUnreliable(clientId, message(clientId, sequence, in));
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Helper method to build the datagram that delivers a message. It is shared by every
+	 * recipient, so it must not be modified, only duplicated.
+	 */
+	private static ByteBuffer message(int senderId, int sequence, ByteBuffer body) {
+		ByteBuffer message = ByteBuffer.allocate(MESSAGE_HEADER + body.remaining());
+		message.put(MESSAGE);
+		message.putInt(senderId);
+		message.putInt(sequence);
+		message.put(body);
+		message.flip();
+		return message;
+	}
+
+	/**
+	 * Send a datagram to a client, if it has told the server where it is.
+	 * This may be called from any thread.
+	 */
+	void sendTo(int clientId, ByteBuffer datagram) {
+		Peer peer = peers.get(clientId);
+		SocketAddress address = peer != null ? peer.address : null;
+		if (address != null) {
+			send(datagram.duplicate(), address);
+		}
+	}
+
+	private void send(ByteBuffer datagram, SocketAddress address) {
+		try {
+			channel.send(datagram, address);
+		} catch (IOException e) {
+			// Lost, like any other datagram
+		}
+	}
+
+	public void stop() {
+		shutdown = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+}
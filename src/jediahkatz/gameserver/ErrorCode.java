@@ -9,4 +9,6 @@ enum ErrorCode {
 	ALREADY_IN_ROOM,
 	/** No client exists with the specified id **/
 	CLIENT_NOT_FOUND,
+	/** A value of a type that can't be stored **/
+	INVALID_VALUE,
 }
@@ -0,0 +1,182 @@
+package jediahkatz.gameserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs in its own thread and serves clients over non-blocking sockets.
+ * The thread sleeps inside the selector until a client connects or sends data,
+ * so requests are dispatched as soon as they arrive and idle clients cost nothing.
+ * Each event loop runs one shard of the server. The first loop accepts new clients
+ * and deals them out to all the loops in turn.
+ * @author jediahkatz
+ */
+class EventLoop implements Runnable {
+	private final GameServer server;
+	private final Shard shard;
+	private final Selector selector;
+	// The socket that new clients connect to, or null if this loop doesn't accept clients
+	private final ServerSocketChannel acceptor;
+	// Every event loop of the server, including this one
+	private final EventLoop[] loops;
+	private int nextLoop = 0;
+	private volatile boolean shutdown = false;
+	// Connections that failed while handling the current batch of events
+	private final List<NioConnection> closed = new ArrayList<>();
+	
+	/**
+	 * @param server the server to dispatch events to
+	 * @param shard the shard that this loop runs
+	 * @param acceptor the socket to accept new clients from, or null
+	 * @param loops every event loop of the server, which may be filled in after this one is created
+	 */
+	EventLoop(GameServer server, Shard shard, ServerSocketChannel acceptor, EventLoop[] loops) throws IOException {
+		this.server = server;
+		this.shard = shard;
+		this.acceptor = acceptor;
+		this.loops = loops;
+		selector = Selector.open();
+		if (acceptor != null) {
+			acceptor.configureBlocking(false);
+			acceptor.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		shard.wakeUp(selector);
+	}
+	
+	/**
+	 * Open the socket that clients connect to on the given port.
+	 */
+	static ServerSocketChannel listen(int port) throws IOException {
+		ServerSocketChannel acceptor = ServerSocketChannel.open();
+		acceptor.bind(new InetSocketAddress(port));
+		return acceptor;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!shutdown) {
+				selector.select();
+				shard.runTasks();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						handle(key, (NioConnection) key.attachment());
+					}
+				}
+				// Cleaning up may send data, and sending data may fail
+				do {
+					for (NioConnection connection : closed) {
+						connection.close();
+						server.disconnected(connection);
+					}
+					closed.clear();
+					server.flush(shard);
+				} while (!closed.isEmpty());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Server failed: " + e.getMessage(), e);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	/**
+	 * Accept a new client and hand it to the next event loop.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = acceptor.accept();
+		if (channel == null) {
+			return;
+		}
+		EventLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		if (loop == this) {
+			loop.register(channel);
+		} else {
+			loop.shard.post(() -> loop.register(channel));
+		}
+	}
+	
+	/**
+	 * Start serving a newly accepted client from this loop, and register it with the server.
+	 */
+	private void register(SocketChannel channel) {
+		SelectionKey key;
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			key = channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			// The client is already gone
+			try {
+				channel.close();
+			} catch (IOException e2) {
+			}
+			return;
+		}
+		NioConnection connection = new NioConnection(this, channel, key);
+		key.attach(connection);
+		server.connected(shard, connection);
+	}
+	
+	/**
+	 * Handle a connection that is ready to be written to or read from.
+	 */
+	private void handle(SelectionKey key, NioConnection connection) {
+		boolean open = true;
+		try {
+			if (key.isWritable()) {
+				server.flush(connection);
+			}
+			if (key.isReadable()) {
+				open = connection.read();
+				// Frames are handled one at a time, since a frame may change the framing of the next
+				FrameDecoder decoder = connection.decoder;
+				while (decoder.next()) {
+					server.received(connection, decoder.array(), decoder.frameStart(), decoder.frameLength());
+				}
+			}
+		} catch (IOException | IllegalStateException e) {
+			open = false;
+		}
+		if (!open) {
+			connection.fail();
+		}
+	}
+	
+	/**
+	 * Close a connection and disconnect its client once the current batch of events is handled.
+	 */
+	void closeLater(NioConnection connection) {
+		closed.add(connection);
+	}
+	
+	public void stop() {
+		shutdown = true;
+		selector.wakeup();
+	}
+}
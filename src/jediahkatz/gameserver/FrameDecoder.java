@@ -0,0 +1,164 @@
+package jediahkatz.gameserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits a stream of received bytes into frames, using one reusable buffer.
+ * Partial frames are kept until the rest of their bytes arrive. Length-prefixed frames
+ * are cut out directly, and delimited frames are scanned only once even if they
+ * arrive in many pieces.
+ * @author jediahkatz
+ */
+class FrameDecoder {
+	/** The most bytes in a frame from a client, so that a client can't make the server run out of memory. **/
+	static final int MAX_FRAME_LENGTH = 1024 * 1024;
+	private Framing framing = Framing.DELIMITED;
+	// The most bytes allowed in a frame
+	private final int maxFrameLength;
+	private byte[] buf = new byte[4096];
+	// Received bytes that haven't been decoded yet are in [start, end)
+	private int start = 0;
+	private int end = 0;
+	// Bytes before this index are known not to contain a separator
+	private int scanned = 0;
+	// The most recently decoded frame
+	private int frameStart;
+	private int frameLength;
+	
+	/**
+	 * Create a decoder that allows frames of up to MAX_FRAME_LENGTH bytes.
+	 */
+	FrameDecoder() {
+		this(MAX_FRAME_LENGTH);
+	}
+	
+	/**
+	 * @param maxFrameLength the most bytes allowed in a frame
+	 */
+	FrameDecoder(int maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+	}
+	
+	/**
+	 * Change how frames are separated, starting with the next undecoded byte.
+	 */
+	void setFraming(Framing framing) {
+		this.framing = framing;
+		scanned = start;
+	}
+	
+	/**
+	 * Add received bytes to the buffer.
+	 */
+	void feed(byte[] data, int offset, int length) {
+		reserve(length);
+		System.arraycopy(data, offset, buf, end, length);
+		end += length;
+	}
+	
+	/**
+	 * Read whatever bytes are available from a channel straight into the buffer.
+	 * @return the number of bytes read, or -1 if the channel has reached end-of-stream
+	 */
+	int fill(ReadableByteChannel channel) throws IOException {
+		reserve(1);
+		int read = channel.read(ByteBuffer.wrap(buf, end, buf.length - end));
+		if (read > 0) {
+			end += read;
+		}
+		return read;
+	}
+	
+	/**
+	 * Decode the next complete frame, if there is one.
+	 * The frame's bytes can be found with array(), frameStart() and frameLength(), and
+	 * are only valid until more data is added.
+	 * @return true if a frame was decoded, or false if more data is needed
+	 * @throws IllegalStateException if a length prefix is malformed, or a frame is longer than allowed
+	 */
+	boolean next() {
+		if (framing == Framing.DELIMITED) {
+			for (int i = Math.max(scanned, start); i < end; i++) {
+				if (buf[i] == Framing.SEP) {
+					frameStart = start;
+					frameLength = i - start;
+					start = scanned = i + 1;
+					return true;
+				}
+			}
+			scanned = end;
+			if (end - start > maxFrameLength) {
+				throw new IllegalStateException("Frame too large");
+			}
+			return false;
+		}
+		
+		int length = 0;
+		int shift = 0;
+		int pos = start;
+		byte b;
+		do {
+			if (pos == end) {
+				return false;
+			}
+			if (shift > 28) {
+				throw new IllegalStateException("Malformed frame length");
+			}
+			b = buf[pos++];
+			length |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		if (length < 0) {
+			throw new IllegalStateException("Malformed frame length");
+		}
+		if (length > maxFrameLength) {
+			throw new IllegalStateException("Frame too large");
+		}
+		if (end - pos < length) {
+			// Make sure the whole frame will fit once it arrives
+			reserve(pos + length - end);
+			return false;
+		}
+		frameStart = pos;
+		frameLength = length;
+		start = pos + length;
+		return true;
+	}
+	
+	/** Get the array holding the most recently decoded frame. **/
+	byte[] array() {
+		return buf;
+	}
+	
+	/** Get the index of the first byte of the most recently decoded frame. **/
+	int frameStart() {
+		return frameStart;
+	}
+	
+	/** Get the number of bytes in the most recently decoded frame. **/
+	int frameLength() {
+		return frameLength;
+	}
+	
+	/**
+	 * Make room for at least the given number of bytes after the end of the received data,
+	 * by discarding decoded bytes and growing the buffer if needed.
+	 */
+	private void reserve(int bytes) {
+		if (buf.length - end >= bytes) {
+			return;
+		}
+		int undecoded = end - start;
+		byte[] target = buf;
+		if (undecoded + bytes > buf.length) {
+			target = new byte[Math.max(buf.length * 2, undecoded + bytes)];
+		}
+		System.arraycopy(buf, start, target, 0, undecoded);
+		buf = target;
+		scanned = Math.max(scanned - start, 0);
+		end = undecoded;
+		start = 0;
+	}
+}
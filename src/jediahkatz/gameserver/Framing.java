@@ -0,0 +1,36 @@
+package jediahkatz.gameserver;
+
+/**
+ * The ways that frames (individual requests and responses) can be separated on the wire.
+ * Every connection starts out DELIMITED, and the client may ask to switch when it registers.
+ * @author jediahkatz
+ */
+enum Framing {
+	/** Each frame is followed by the beep character. Supported by all clients. **/
+	DELIMITED,
+	/** Each frame is preceded by its length in bytes, as a varint. **/
+	LENGTH_PREFIXED;
+	
+	// Beep character - data separator
+	static final byte SEP = 7;
+	
+	/**
+	 * Wrap a payload in a frame.
+	 * @param payload the bytes to send
+	 * @return a new array containing the framed payload
+	 */
+	byte[] frame(byte[] payload) {
+		byte[] frame;
+		if (this == DELIMITED) {
+			frame = new byte[payload.length + 1];
+			System.arraycopy(payload, 0, frame, 0, payload.length);
+			frame[payload.length] = SEP;
+		} else {
+			int prefix = Varint.size(payload.length);
+			frame = new byte[prefix + payload.length];
+			Varint.write(payload.length, frame, 0);
+			System.arraycopy(payload, 0, frame, prefix, payload.length);
+		}
+		return frame;
+	}
+}
@@ -1,31 +1,117 @@
 package jediahkatz.gameserver;
 
-import processing.net.*;
 import processing.core.*;
 import processing.data.JSONArray;
 import processing.data.JSONObject;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
 
 /** A client that can connect to a server and send messages.
+ * <p>
+ * Every request has a blocking method, which waits for the server's response, and an asynchronous
+ * one ending in Async, which returns a CompletableFuture right away. The futures are completed
+ * on the thread that receives data from the server, so their callbacks should be quick and
+ * must not wait for other requests.
  * @author jediahkatz
  */
 public class GameClient {
-	// Beep character - data separator
-	private final char SEP = (char) 7;
 	// The maximum time in msec to wait for data before throwing an exception
-	private final int TIMEOUT = 1000;
+	private volatile long timeout = 1000;
+	// Fails requests that have waited too long for their responses, shared by every client
+	private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, task -> {
+		Thread thread = new Thread(task, "GameClient timeouts");
+		thread.setDaemon(true);
+		return thread;
+	});
+	static {
+		TIMER.setRemoveOnCancelPolicy(true);
+	}
 	private final DataFetcher thread;
 	
 	private final int id;
-	private Integer roomId = null;
-	private Client client;
-	// Maps action to a buffer containing data objects for those actions
-	private Map<String, Queue<JSONObject>> dataBuffer = new ConcurrentHashMap<>();
+	private volatile Integer roomId = null;
+	// Blocking, so that the fetcher thread sleeps in read until data arrives
+	private SocketChannel channel;
+	private volatile boolean connected = false;
+	// How frames sent to the server are separated
+	private volatile Framing framing = Framing.DELIMITED;
+	// How data objects sent to the server are encoded
+	private volatile Codec codec = Codec.JSON;
+	// How data objects received from the server are decoded. Only used by the fetcher thread.
+	private Codec receiveCodec = Codec.JSON;
+	// Splits the data received from the server into frames. The server is trusted with larger
+	// frames than clients are, since the info about every room can take up a lot of space.
+	private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+	private final FrameDecoder decoder = new FrameDecoder(MAX_FRAME_LENGTH);
+	// Metrics, only written by the fetcher thread
+	private volatile long framesReceived = 0;
+	private volatile long receivePasses = 0;
+	private volatile int largestBatch = 0;
+	private volatile long listenerFailures = 0;
+	// The most data objects each buffer can hold, if the constructor isn't given a capacity
+	private static final int DEFAULT_BUFFER_CAPACITY = 1024;
+	// The buffer containing data objects for each action, by ordinal, created when first needed
+	private final AtomicReferenceArray<RingBuffer<JSONObject>> dataBuffer =
+			new AtomicReferenceArray<>(ActionCode.values().length);
+	private final int bufferCapacity;
+	// What to do with data objects that arrive for a buffer that is full
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+	// Whether the server echoes request ids, so that responses can be matched to their requests
+	private boolean requestIds = false;
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+	// Requests that are waiting for their responses, by request id
+	private final Map<Integer, CompletableFuture<JSONObject>> pending = new ConcurrentHashMap<>();
+	// Requests that are waiting for their responses by action type, oldest first, if the server
+	// doesn't echo request ids
+	private final Map<ActionCode, Queue<CompletableFuture<JSONObject>>> waiting = new ConcurrentHashMap<>();
+	// Called with each message instead of queueing it for getNextMessage, if not null
+	private volatile MessageListener listener = null;
+	private volatile MessageDispatch dispatch = MessageDispatch.RECEIVE_THREAD;
+	// The most messages passed to the listener per frame on the sketch thread, or 0 for no limit
+	private volatile int maxBatch = 0;
+	// Messages waiting to be read with getNextMessage
+	private final RingBuffer<Message> messages;
+	// Messages waiting to be passed to the listener on the sketch thread
+	private final RingBuffer<Message> handoff;
+	// Set by the codec to the body of the frame being decoded, if it is a message. Only used by
+	// the fetcher thread.
+	private final RawValue[] messageBody = new RawValue[1];
+	// The side channel for unreliable messages, or null if the server doesn't relay them
+	private DatagramChannel datagrams;
+	private DatagramFetcher datagramThread;
+	// Proves to the server that our datagrams are from us
+	private int datagramToken;
+	private final AtomicInteger nextSequence = new AtomicInteger();
+	// Completed once the server knows where to send our datagrams
+	private final CompletableFuture<Void> datagramsOpened = new CompletableFuture<>();
+	// Announces our address until the server has answered
+	private ScheduledFuture<?> hello;
+	// The newest sequence number received from each sender. Only used by the datagram thread.
+	private final IntMap<int[]> lastSequences = new IntMap<>();
+	private volatile long staleDatagrams = 0;
+	// Unreliable messages waiting to be read, added only by the datagram thread
+	private final RingBuffer<Message> unreliableMessages;
 	
 	/**
 	 * 
@@ -34,22 +120,144 @@ public class GameClient {
 	 * @param port the port to transfer data over
 	 */
 	public GameClient(PApplet parent, String host, int port) {
+		this(parent, host, port, DEFAULT_BUFFER_CAPACITY);
+	}
+	
+	/**
+	 * 
+	 * @param parent the current sketch (this)
+	 * @param host the hostname of the server
+	 * @param port the port to transfer data over
+	 * @param bufferCapacity the most messages, and likewise room updates, that can wait to be read
+	 *        before the overflow policy applies, rounded up to a power of two
+	 */
+	public GameClient(PApplet parent, String host, int port, int bufferCapacity) {
+		this.bufferCapacity = bufferCapacity;
+		messages = new RingBuffer<>(bufferCapacity);
+		handoff = new RingBuffer<>(bufferCapacity);
+		unreliableMessages = new RingBuffer<>(bufferCapacity);
 		parent.registerMethod("dispose", this);
-		client = new Client(parent, host, port);
-		if (!connected()) {
-			throw new RuntimeException("Failed to connect to the server.");
+		parent.registerMethod("pre", this);
+		listenForMessageEvents(parent);
+		try {
+			channel = SocketChannel.open(new InetSocketAddress(host, port));
+			channel.socket().setTcpNoDelay(true);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to connect to the server.", e);
 		}
+		connected = true;
+		
+		// The server registers us as soon as we connect, so start waiting before the fetcher does
+		CompletableFuture<JSONObject> registered = expect(ActionCode.REGISTER_CLIENT);
 		
 		// Start a new thread for this client to fetch data
 		thread = new DataFetcher(this);
 		new Thread(thread).start();
 				
-		JSONObject response = waitForFirstAction(ActionCode.REGISTER_CLIENT);
+		JSONObject response = await(registered);
 		if (response.getString("status").equals("success")) {
 			id = response.getInt("clientId");
+			requestIds = response.hasKey("requestIds");
 		} else {
 			throw new RuntimeException("Failed to register this client with the server.");
 		}
+		
+		// Older servers don't support length-prefixed frames or other codecs
+		if (supports(response, "framings", Framing.LENGTH_PREFIXED.name())) {
+			Codec codec = supports(response, "codecs", Codec.BINARY.name()) ? Codec.BINARY : Codec.JSON;
+			negotiate(Framing.LENGTH_PREFIXED, codec);
+		}
+		
+		if (response.hasKey("udpToken")) {
+			openDatagrams(host, response.getInt("udpPort"), response.getInt("udpToken"));
+		}
+	}
+	
+	/**
+	 * Open the side channel for unreliable messages, and tell the server where to send them.
+	 * If the server can't be reached over UDP, such as because of a firewall, the client keeps
+	 * trying in the background, and works as usual otherwise.
+	 */
+	private void openDatagrams(String host, int port, int token) {
+		try {
+			datagrams = DatagramChannel.open();
+			datagrams.connect(new InetSocketAddress(host, port));
+		} catch (IOException e) {
+			datagrams = null;
+			return;
+		}
+		datagramToken = token;
+		// The hello or its answer may be lost, so repeat it until it gets through
+		hello = TIMER.scheduleWithFixedDelay(() -> {
+			sendDatagram(datagram(DatagramRelay.HELLO, 0, 0));
+		}, 0, 100, TimeUnit.MILLISECONDS);
+		// Started after the hello, which it cancels once it is answered
+		datagramThread = new DatagramFetcher(this);
+		new Thread(datagramThread).start();
+		try {
+			datagramsOpened.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException | ExecutionException e) {
+			// Keep trying
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * If the sketch has a messageEvent(Message) method, pass it every message on the sketch thread,
+	 * much like clientEvent in processing.net.
+	 */
+	private void listenForMessageEvents(PApplet parent) {
+		Method messageEvent;
+		try {
+			messageEvent = parent.getClass().getMethod("messageEvent", Message.class);
+		} catch (NoSuchMethodException e) {
+			// Messages are queued for getNextMessage instead
+			return;
+		}
+		setMessageListener(message -> {
+			try {
+				messageEvent.invoke(parent, message);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}, MessageDispatch.SKETCH_THREAD);
+	}
+	
+	/**
+	 * Return true if the server listed the given name in its registration response.
+	 */
+	private boolean supports(JSONObject response, String key, String name) {
+		if (response.hasKey(key)) {
+			for (String supported : response.getJSONArray(key).getStringArray()) {
+				if (supported.equals(name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Ask the server to switch to a different framing and codec. The request and response are
+	 * sent the old way, and every frame after them is sent the new way.
+	 * @param framing the framing to switch to
+	 * @param codec the codec to switch to
+	 */
+	private void negotiate(Framing framing, Codec codec) {
+		JSONObject request = new JSONObject();
+		setAction(request, ActionCode.REGISTER_CLIENT);
+		request.setString("framing", framing.name());
+		request.setString("codec", codec.name());
+		CompletableFuture<JSONObject> switched = expect(ActionCode.REGISTER_CLIENT);
+		send(request);
+		this.framing = framing;
+		this.codec = codec;
+		// The fetcher thread switches its decoding as soon as it receives the response
+		await(switched);
 	}
 	
 	/**
@@ -70,7 +278,48 @@ public class GameClient {
 		request.setInt("clientId", id);
 		send(request);
 		thread.stop();
-		client.stop();
+		close();
+	}
+	
+	/**
+	 * Close the connection, and fail the requests that are still waiting since nothing will
+	 * answer them.
+	 */
+	private void close() {
+		connected = false;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		if (datagramThread != null) {
+			hello.cancel(false);
+			datagramThread.stop();
+			try {
+				datagrams.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+		// Wake the fetcher thread if it is waiting for room in a buffer
+		messages.close();
+		handoff.close();
+		unreliableMessages.close();
+		for (int i=0; i<dataBuffer.length(); i++) {
+			RingBuffer<JSONObject> buffer = dataBuffer.get(i);
+			if (buffer != null) {
+				buffer.close();
+			}
+		}
+		RuntimeException disconnected = new RuntimeException("Disconnected from the server.");
+		for (CompletableFuture<JSONObject> response : pending.values()) {
+			response.completeExceptionally(disconnected);
+		}
+		for (Queue<CompletableFuture<JSONObject>> queue : waiting.values()) {
+			for (CompletableFuture<JSONObject> response : queue) {
+				response.completeExceptionally(disconnected);
+			}
+		}
 	}
 	
 	/**
@@ -78,7 +327,85 @@ public class GameClient {
 	 * @return true if this client is connected, otherwise false
 	 */
 	public boolean connected() {
-		return client != null && client.active();
+		return connected;
+	}
+	
+	/**
+	 * Set what happens when a message or room update arrives while the buffer it goes in is full.
+	 * By default the oldest one in the buffer is dropped.
+	 * @param policy the overflow policy
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		overflowPolicy = policy;
+	}
+	
+	/**
+	 * Get the number of times that data arrived for a buffer that was full.
+	 */
+	public long getOverflowCount() {
+		long total = messages.overflows + handoff.overflows + unreliableMessages.overflows;
+		for (int i=0; i<dataBuffer.length(); i++) {
+			RingBuffer<JSONObject> buffer = dataBuffer.get(i);
+			if (buffer != null) {
+				total += buffer.overflows;
+			}
+		}
+		return total;
+	}
+	
+	/**
+	 * Get the total number of messages and room updates that have been dropped because their
+	 * buffer was full.
+	 */
+	public long getDroppedFrames() {
+		long total = messages.dropped + handoff.dropped + unreliableMessages.dropped;
+		for (int i=0; i<dataBuffer.length(); i++) {
+			RingBuffer<JSONObject> buffer = dataBuffer.get(i);
+			if (buffer != null) {
+				total += buffer.dropped;
+			}
+		}
+		return total;
+	}
+	
+	/**
+	 * Get the total number of frames received from the server.
+	 */
+	public long getFramesReceived() {
+		return framesReceived;
+	}
+	
+	/**
+	 * Get the number of times that data has been received from the server. Every frame that is
+	 * complete is handled in the same pass, so the average batch size is getFramesReceived()
+	 * divided by this.
+	 */
+	public long getReceivePasses() {
+		return receivePasses;
+	}
+	
+	/**
+	 * Get the largest number of frames that have been handled in a single pass.
+	 */
+	public int getLargestBatch() {
+		return largestBatch;
+	}
+	
+	/**
+	 * Get the number of times that a listener called on the receiving thread threw an exception.
+	 * The exception is passed to the default uncaught exception handler, if there is one, and
+	 * the client carries on receiving.
+	 */
+	public long getListenerFailures() {
+		return listenerFailures;
+	}
+	
+	/**
+	 * Get the number of unreliable messages that were dropped because a newer one from the same
+	 * sender had already arrived.
+	 */
+	public long getStaleDatagrams() {
+		return staleDatagrams;
 	}
 	
 	/**
@@ -97,56 +424,95 @@ public class GameClient {
 		return roomId;
 	}
 	
+	/**
+	 * Get the maximum time in msec that requests wait for a response from the server.
+	 * @return the timeout in msec
+	 */
+	public long timeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Set the maximum time in msec that requests wait for a response from the server before they
+	 * fail. This applies to requests sent after it is called.
+	 * @param millis the timeout in msec, which must be positive
+	 */
+	public void setTimeout(long millis) {
+		if (millis <= 0) {
+			throw new IllegalArgumentException("The timeout must be positive.");
+		}
+		timeout = millis;
+	}
+	
 	/**
 	 * Create a new room.
 	 * @param capacity the maximum number of clients allowed in the room
 	 * @return the unique id of the newly created room
 	 */
 	public int createRoom(int capacity) {
+		return await(createRoomAsync(capacity));
+	}
+	
+	/**
+	 * Create a new room without waiting for the server. See createRoom.
+	 * @param capacity the maximum number of clients allowed in the room
+	 * @return a future completed with the unique id of the newly created room
+	 */
+	public CompletableFuture<Integer> createRoomAsync(int capacity) {
 		JSONObject request = new JSONObject();
 		setAction(request, ActionCode.REGISTER_ROOM);
 		request.setInt("capacity", capacity);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.REGISTER_ROOM);
-		if (response.getString("status").equals("success")) {
-			return response.getInt("roomId");
-		}
-		throw new RuntimeException("Failed to create new room.");
+		return request(request, ActionCode.REGISTER_ROOM, response -> {
+			if (response.getString("status").equals("success")) {
+				return response.getInt("roomId");
+			}
+			throw new RuntimeException("Failed to create new room.");
+		});
 	}
 	
 	/**
 	 * Join an existing room.
 	 * @param roomId the unique id of the room to join
 	 * @return an object containing info about the room joined
-	 * @throws NoSuchElementException if no room exists with the given id
+	 * @throws NoSuchRoomException if no room exists with the given id
 	 * @throws RoomFullException if the room is already full
 	 * @throws AlreadyInRoomException if this client is currently in a room
 	 */
 	public RoomInfo joinRoom(int roomId) {
+		return await(joinRoomAsync(roomId));
+	}
+	
+	/**
+	 * Join an existing room without waiting for the server. See joinRoom.
+	 * @param roomId the unique id of the room to join
+	 * @return a future completed with info about the room joined, or completed exceptionally with
+	 *         NoSuchRoomException, RoomFullException or AlreadyInRoomException
+	 */
+	public CompletableFuture<RoomInfo> joinRoomAsync(int roomId) {
 		if (this.roomId != null) {
-			throw new AlreadyInRoomException("Can't join a room while already in a room.");
+			return failed(new AlreadyInRoomException("Can't join a room while already in a room."));
 		}
 		
 		JSONObject request = new JSONObject();
 		setAction(request, ActionCode.JOIN_ROOM);
 		request.setInt("roomId", roomId);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.JOIN_ROOM);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ALREADY_IN_ROOM: // This hopefully should never happen
-				throw new AlreadyInRoomException("Can't join a room while already in a room.");
-			case ROOM_FULL:
-				throw new RoomFullException("Tried to join a room that is already full.");
-			case ROOM_NOT_FOUND:
-				throw new NoSuchElementException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to join room.");
+		return request(request, ActionCode.JOIN_ROOM, response -> {
+			if (response.getString("status").equals("error")) {
+				switch (ErrorCode.valueOf(response.getString("error"))) {
+				case ALREADY_IN_ROOM: // Another join was already on its way
+					throw new AlreadyInRoomException("Can't join a room while already in a room.");
+				case ROOM_FULL:
+					throw new RoomFullException("Tried to join a room that is already full.");
+				case ROOM_NOT_FOUND:
+					throw new NoSuchRoomException("No room exists with id: " + roomId);
+				default:
+					throw new RuntimeException("Failed to join room.");
+				}
 			}
-		}
-		
-		this.roomId = roomId;
-		return constructRoomInfo(response);
+			
+			this.roomId = roomId;
+			return constructRoomInfo(response);
+		});
 	}
 	
 	/**
@@ -154,116 +520,372 @@ public class GameClient {
 	 * If the client is not in a room this method does nothing.
 	 */
 	public void leaveRoom() {
-		if (roomId != null) {
-			JSONObject request = new JSONObject();
-			setAction(request, ActionCode.LEAVE_ROOM);
-			send(request);
-			JSONObject response = waitForFirstAction(ActionCode.LEAVE_ROOM);
+		await(leaveRoomAsync());
+	}
+	
+	/**
+	 * Leave the room that this client is currently in without waiting for the server. See leaveRoom.
+	 * @return a future completed once the room has been left
+	 */
+	public CompletableFuture<Void> leaveRoomAsync() {
+		if (roomId == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		JSONObject request = new JSONObject();
+		setAction(request, ActionCode.LEAVE_ROOM);
+		return request(request, ActionCode.LEAVE_ROOM, response -> {
 			if (response.getString("status").equals("success")) {
 				roomId = null;
-			} else {
-				throw new RuntimeException("Failed to leave room.");
+				return null;
 			}
-		}
+			throw new RuntimeException("Failed to leave room.");
+		});
 	}
 	
 	/**
-	 * Join any room that isn't full, or create a new room if all rooms are full.
-	 * @param capacity the maximum number of clients allowed in a new room, if one is created
+	 * Join a room with the given capacity that isn't full, or create a new room if all of those
+	 * are full. The fullest such room is chosen, so that rooms fill up one at a time.
+	 * @param capacity the maximum number of clients allowed in the room
 	 * @return an object containing info about the room joined
 	 * @throws AlreadyInRoomException if this client is currently in a room
 	 */
 	public RoomInfo autojoinRoom(int capacity) {
+		return await(autojoinRoomAsync(capacity));
+	}
+	
+	/**
+	 * Join or create a room without waiting for the server. See autojoinRoom.
+	 * @param capacity the maximum number of clients allowed in the room
+	 * @return a future completed with info about the room joined, or completed exceptionally with
+	 *         AlreadyInRoomException
+	 */
+	public CompletableFuture<RoomInfo> autojoinRoomAsync(int capacity) {
 		if (this.roomId != null) {
-			throw new AlreadyInRoomException("Can't join a room while already in a room.");
+			return failed(new AlreadyInRoomException("Can't join a room while already in a room."));
 		}
 		
 		JSONObject request = new JSONObject();
 		setAction(request, ActionCode.AUTOJOIN_ROOM);
 		request.setInt("capacity", capacity);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.AUTOJOIN_ROOM);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ALREADY_IN_ROOM: // This hopefully should never happen
-				throw new AlreadyInRoomException("Can't join a room while already in a room.");
-			default:
-				throw new RuntimeException("Failed to autojoin a room.");
+		return request(request, ActionCode.AUTOJOIN_ROOM, response -> {
+			if (response.getString("status").equals("error")) {
+				switch (ErrorCode.valueOf(response.getString("error"))) {
+				case ALREADY_IN_ROOM: // Another join was already on its way
+					throw new AlreadyInRoomException("Can't join a room while already in a room.");
+				default:
+					throw new RuntimeException("Failed to autojoin a room.");
+				}
 			}
-		}
-		
-		RoomInfo info = constructRoomInfo(response);
-		this.roomId = info.id();
-		return info;
+			
+			RoomInfo info = constructRoomInfo(response);
+			this.roomId = info.id();
+			return info;
+		});
 	}
 	
 	/**
 	 * Get info about a room.
 	 * @param roomId the unique id of the room to look up
 	 * @return an object containing info about the room
-	 * @throws NoSuchElementException if no room exists with the given id
+	 * @throws NoSuchRoomException if no room exists with the given id
 	 */
 	public RoomInfo getRoomInfo(int roomId) {
+		return await(getRoomInfoAsync(roomId));
+	}
+	
+	/**
+	 * Get info about a room without waiting for the server. See getRoomInfo.
+	 * @param roomId the unique id of the room to look up
+	 * @return a future completed with info about the room, or completed exceptionally with
+	 *         NoSuchRoomException
+	 */
+	public CompletableFuture<RoomInfo> getRoomInfoAsync(int roomId) {
 		JSONObject request = new JSONObject();
 		setAction(request, ActionCode.GET_ROOM_INFO);
 		request.setInt("roomId", roomId);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.GET_ROOM_INFO);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ROOM_NOT_FOUND:
-				throw new NoSuchElementException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to get room info.");
+		return request(request, ActionCode.GET_ROOM_INFO, response -> {
+			if (response.getString("status").equals("error")) {
+				switch (ErrorCode.valueOf(response.getString("error"))) {
+				case ROOM_NOT_FOUND:
+					throw new NoSuchRoomException("No room exists with id: " + roomId);
+				default:
+					throw new RuntimeException("Failed to get room info.");
+				}
+			}
+			
+			return constructRoomInfo(response);
+		});
+	}
+	
+	/**
+	 * Subscribe to a room, to be sent its changes as they happen instead of polling getRoomInfo.
+	 * Clients don't have to be in a room to subscribe to it. The changes that happen together
+	 * arrive together, as one RoomUpdate, which can be read with getNextRoomUpdate.
+	 * @param roomId the unique id of the room to subscribe to
+	 * @return an object containing info about the room when the subscription started
+	 * @throws NoSuchRoomException if no room exists with the given id
+	 */
+	public RoomInfo subscribeRoom(int roomId) {
+		return await(subscribeRoomAsync(roomId));
+	}
+	
+	/**
+	 * Subscribe to a room without waiting for the server. See subscribeRoom.
+	 * @param roomId the unique id of the room to subscribe to
+	 * @return a future completed with info about the room when the subscription started, or
+	 *         completed exceptionally with NoSuchRoomException
+	 */
+	public CompletableFuture<RoomInfo> subscribeRoomAsync(int roomId) {
+		JSONObject request = new JSONObject();
+		setAction(request, ActionCode.SUBSCRIBE_ROOM);
+		request.setInt("roomId", roomId);
+		return request(request, ActionCode.SUBSCRIBE_ROOM, response -> {
+			if (response.getString("status").equals("error")) {
+				switch (ErrorCode.valueOf(response.getString("error"))) {
+				case ROOM_NOT_FOUND:
+					throw new NoSuchRoomException("No room exists with id: " + roomId);
+				default:
+					throw new RuntimeException("Failed to subscribe to room.");
+				}
+			}
+			
+			return constructRoomInfo(response);
+		});
+	}
+	
+	/**
+	 * Stop receiving the changes to a room. Updates that were already on their way may
+	 * still arrive.
+	 * @param roomId the unique id of the room to unsubscribe from
+	 */
+	public void unsubscribeRoom(int roomId) {
+		await(unsubscribeRoomAsync(roomId));
+	}
+	
+	/**
+	 * Stop receiving the changes to a room without waiting for the server. See unsubscribeRoom.
+	 * @param roomId the unique id of the room to unsubscribe from
+	 * @return a future completed once the server has unsubscribed this client
+	 */
+	public CompletableFuture<Void> unsubscribeRoomAsync(int roomId) {
+		JSONObject request = new JSONObject();
+		setAction(request, ActionCode.UNSUBSCRIBE_ROOM);
+		request.setInt("roomId", roomId);
+		return request(request, ActionCode.UNSUBSCRIBE_ROOM, response -> {
+			if (response.getString("status").equals("error")) {
+				throw new RuntimeException("Failed to unsubscribe from room.");
+			}
+			return null;
+		});
+	}
+	
+	/**
+	 * Get the next update to a subscribed room from the queue.
+	 * If there are no updates, this method returns null.
+	 * @return the update, or null if there are no updates
+	 */
+	public RoomUpdate getNextRoomUpdate() {
+		JSONObject data = getFirstAction(ActionCode.ROOM_UPDATE);
+		return data == null ? null : constructRoomUpdate(data);
+	}
+	
+	/**
+	 * Get all updates to subscribed rooms received by this client.
+	 * @return an array containing all updates, in increasing chronological order
+	 */
+	public RoomUpdate[] getRoomUpdates() {
+		JSONObject[] data = getAllActions(ActionCode.ROOM_UPDATE);
+		RoomUpdate[] updates = new RoomUpdate[data.length];
+		for (int i=0; i<data.length; i++) {
+			updates[i] = constructRoomUpdate(data[i]);
+		}
+		return updates;
+	}
+	
+	/**
+	 * Set how many times per second a room sends the state of its clients to everyone in it.
+	 * Rooms don't tick unless the server sets a tick rate for every room, or a client sets one.
+	 * @param roomId the unique id of the room
+	 * @param ticksPerSecond the number of ticks per second, up to 240, or 0 to stop ticking
+	 * @throws IllegalArgumentException if the tick rate is negative
+	 * @throws NoSuchRoomException if no room exists with the given id
+	 */
+	public void setRoomTickRate(int roomId, int ticksPerSecond) {
+		await(setRoomTickRateAsync(roomId, ticksPerSecond));
+	}
+	
+	/**
+	 * Set how many times per second a room sends its state without waiting for the server.
+	 * See setRoomTickRate.
+	 * @param roomId the unique id of the room
+	 * @param ticksPerSecond the number of ticks per second, up to 240, or 0 to stop ticking
+	 * @return a future completed once the tick rate has been set, or completed exceptionally
+	 *         with NoSuchRoomException
+	 * @throws IllegalArgumentException if the tick rate is negative
+	 */
+	public CompletableFuture<Void> setRoomTickRateAsync(int roomId, int ticksPerSecond) {
+		if (ticksPerSecond < 0) {
+			throw new IllegalArgumentException("The tick rate can't be negative.");
+		}
+		JSONObject request = new JSONObject();
+		setAction(request, ActionCode.SET_TICK_RATE);
+		request.setInt("roomId", roomId);
+		request.setInt("tickRate", ticksPerSecond);
+		return request(request, ActionCode.SET_TICK_RATE, response -> {
+			if (response.getString("status").equals("error")) {
+				switch (ErrorCode.valueOf(response.getString("error"))) {
+				case ROOM_NOT_FOUND:
+					throw new NoSuchRoomException("No room exists with id: " + roomId);
+				default:
+					throw new RuntimeException("Failed to set the tick rate.");
+				}
 			}
+			return null;
+		});
+	}
+	
+	/**
+	 * Get the next snapshot of this client's room from the queue.
+	 * If there are no snapshots, this method returns null.
+	 * @return the snapshot, or null if there are no snapshots
+	 */
+	public RoomSnapshot getNextRoomSnapshot() {
+		JSONObject data = getFirstAction(ActionCode.ROOM_SNAPSHOT);
+		return data == null ? null : constructRoomSnapshot(data);
+	}
+	
+	/**
+	 * Get all snapshots of this client's room received by this client.
+	 * @return an array containing all snapshots, in increasing order of their ticks
+	 */
+	public RoomSnapshot[] getRoomSnapshots() {
+		JSONObject[] data = getAllActions(ActionCode.ROOM_SNAPSHOT);
+		RoomSnapshot[] snapshots = new RoomSnapshot[data.length];
+		for (int i=0; i<data.length; i++) {
+			snapshots[i] = constructRoomSnapshot(data[i]);
 		}
-		
-		return constructRoomInfo(response);
+		return snapshots;
+	}
+	
+	/**
+	 * Get info about several rooms at once. Every request is sent before waiting for any of the
+	 * responses, so this takes about as long as getting info about a single room.
+	 * @param roomIds the unique ids of the rooms to look up
+	 * @return an array of objects containing info about the rooms, in the same order as their ids,
+	 *         with null for any room that doesn't exist
+	 */
+	public RoomInfo[] getRoomInfo(int[] roomIds) {
+		return await(getRoomInfoAsync(roomIds));
 	}
 	
+	/**
+	 * Get info about several rooms at once without waiting for the server. See getRoomInfo.
+	 * @param roomIds the unique ids of the rooms to look up
+	 * @return a future completed with info about the rooms, in the same order as their ids,
+	 *         with null for any room that doesn't exist
+	 */
+	public CompletableFuture<RoomInfo[]> getRoomInfoAsync(int[] roomIds) {
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		CompletableFuture<RoomInfo>[] futures = new CompletableFuture[roomIds.length];
+		for (int i=0; i<roomIds.length; i++) {
+			JSONObject request = new JSONObject();
+			setAction(request, ActionCode.GET_ROOM_INFO);
+			request.setInt("roomId", roomIds[i]);
+			futures[i] = request(request, ActionCode.GET_ROOM_INFO, response ->
+				response.getString("status").equals("success") ? constructRoomInfo(response) : null);
+		}
+		
+		return CompletableFuture.allOf(futures).thenApply(done -> {
+			RoomInfo[] infoArray = new RoomInfo[futures.length];
+			for (int i=0; i<futures.length; i++) {
+				infoArray[i] = futures[i].join();
+			}
+			return infoArray;
+		});
+	}
 	
 	/**
 	 * Get info about all rooms on the server.
 	 * @return an array of objects containing info about the rooms
 	 */
 	public RoomInfo[] getRoomsInfo() {
+		return await(getRoomsInfoAsync());
+	}
+	
+	/**
+	 * Get info about all rooms on the server without waiting for it. See getRoomsInfo.
+	 * @return a future completed with info about the rooms
+	 */
+	public CompletableFuture<RoomInfo[]> getRoomsInfoAsync() {
 		JSONObject request = new JSONObject();
 		setAction(request, ActionCode.GET_ROOMS_INFO);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.GET_ROOMS_INFO);
-		if (response.getString("status").equals("error")) {
-			throw new RuntimeException("Failed to get rooms info.");
-		}
-		
-		JSONArray roomsInfo = response.getJSONArray("roomsInfo");
-		RoomInfo[] infoArray = new RoomInfo[roomsInfo.size()];
-		for (int i=0; i<infoArray.length; i++) {
-			infoArray[i] = constructRoomInfo(roomsInfo.getJSONObject(i));
-		}
-		return infoArray;
+		return request(request, ActionCode.GET_ROOMS_INFO, response -> {
+			if (response.getString("status").equals("error")) {
+				throw new RuntimeException("Failed to get rooms info.");
+			}
+			return constructRoomInfoArray(response.getJSONArray("roomsInfo"));
+		});
+	}
+	
+	/**
+	 * Get info about the rooms on the server whose attributes match a query.
+	 * Only the first rooms to match are returned, up to the query's limit.
+	 * @param query the conditions that the rooms must meet
+	 * @return an array of objects containing info about the matching rooms
+	 */
+	public RoomInfo[] queryRooms(RoomQuery query) {
+		return await(queryRoomsAsync(query));
+	}
+	
+	/**
+	 * Query the rooms on the server without waiting for it. See queryRooms.
+	 * @param query the conditions that the rooms must meet
+	 * @return a future completed with info about the matching rooms
+	 */
+	public CompletableFuture<RoomInfo[]> queryRoomsAsync(RoomQuery query) {
+		JSONObject request = query.toJSON();
+		setAction(request, ActionCode.QUERY_ROOMS);
+		return request(request, ActionCode.QUERY_ROOMS, response -> {
+			if (response.getString("status").equals("error")) {
+				throw new RuntimeException("Failed to query rooms.");
+			}
+			return constructRoomInfoArray(response.getJSONArray("roomsInfo"));
+		});
 	}
 	
 	/**
 	 * Set the attributes for a room with a new JSONObject.
 	 * @param roomId the unique id of the room to set attributes for
 	 * @param attributes the object containing the attributes to set for the room
-	 * @throws NoSuchElementException if no room exists with the given id
+	 * @throws NoSuchRoomException if no room exists with the given id
 	 */
 	public void setRoomAttributes(int roomId, JSONObject attributes) {
+		await(setRoomAttributesAsync(roomId, attributes));
+	}
+	
+	/**
+	 * Set the attributes for a room without waiting for the server. See setRoomAttributes.
+	 * @param roomId the unique id of the room to set attributes for
+	 * @param attributes the object containing the attributes to set for the room
+	 * @return a future completed once the attributes are set, or completed exceptionally with
+	 *         NoSuchRoomException
+	 */
+	public CompletableFuture<Void> setRoomAttributesAsync(int roomId, JSONObject attributes) {
 		JSONObject request = new JSONObject();
 		setAction(request, ActionCode.SET_ROOM_ATTRIBUTES);
 		request.setInt("roomId", roomId);
 		request.setJSONObject("attributes", attributes);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.SET_ROOM_ATTRIBUTES);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ROOM_NOT_FOUND:
-				throw new NoSuchElementException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to set room attributes.");
+		return request(request, ActionCode.SET_ROOM_ATTRIBUTES, response -> {
+			if (response.getString("status").equals("error")) {
+				switch (ErrorCode.valueOf(response.getString("error"))) {
+				case ROOM_NOT_FOUND:
+					throw new NoSuchRoomException("No room exists with id: " + roomId);
+				default:
+					throw new RuntimeException("Failed to set room attributes.");
+				}
 			}
-		}
+			return null;
+		});
 	}
 	
 	/**
@@ -271,24 +893,10 @@ public class GameClient {
 	 * @param roomId the unique id of the room to add an attribute to
 	 * @param key the key or name of the attribute
 	 * @param value the value of the attribute
-	 * @throws NoSuchElementException if no room exists with the given id
+	 * @throws NoSuchRoomException if no room exists with the given id
 	 */
 	public void putRoomAttribute(int roomId, String key, String value) {
-		JSONObject request = new JSONObject();
-		setAction(request, ActionCode.PUT_ROOM_ATTRIBUTE);
-		request.setInt("roomId", roomId);
-		request.setString("key", key);
-		request.setString("value", value);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.PUT_ROOM_ATTRIBUTE);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ROOM_NOT_FOUND:
-				throw new NoSuchElementException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to add room attribute.");
-			}
-		}
+		await(putRoomAttributeAsync(roomId, key, value));
 	}
 	
 	/**
@@ -296,24 +904,10 @@ public class GameClient {
 	 * @param roomId the unique id of the room to add an attribute to
 	 * @param key the key or name of the attribute
 	 * @param value the value of the attribute
-	 * @throws NoSuchElementException if no room exists with the given id
+	 * @throws NoSuchRoomException if no room exists with the given id
 	 */
 	public void putRoomAttribute(int roomId, String key, int value) {
-		JSONObject request = new JSONObject();
-		setAction(request, ActionCode.PUT_ROOM_ATTRIBUTE);
-		request.setInt("roomId", roomId);
-		request.setString("key", key);
-		request.setInt("value", value);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.PUT_ROOM_ATTRIBUTE);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ROOM_NOT_FOUND:
-				throw new NoSuchElementException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to add room attribute.");
-			}
-		}
+		await(putRoomAttributeAsync(roomId, key, value));
 	}
 	
 	/**
@@ -321,24 +915,10 @@ public class GameClient {
 	 * @param roomId the unique id of the room to add an attribute to
 	 * @param key the key or name of the attribute
 	 * @param value the value of the attribute
-	 * @throws NoSuchElementException if no room exists with the given id
+	 * @throws NoSuchRoomException if no room exists with the given id
 	 */
 	public void putRoomAttribute(int roomId, String key, boolean value) {
-		JSONObject request = new JSONObject();
-		setAction(request, ActionCode.PUT_ROOM_ATTRIBUTE);
-		request.setInt("roomId", roomId);
-		request.setString("key", key);
-		request.setBoolean("value", value);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.PUT_ROOM_ATTRIBUTE);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ROOM_NOT_FOUND:
-				throw new NoSuchElementException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to add room attribute.");
-			}
-		}
+		await(putRoomAttributeAsync(roomId, key, value));
 	}
 	
 	/**
@@ -346,124 +926,194 @@ public class GameClient {
 	 * @param roomId the unique id of the room to add an attribute to
 	 * @param key the key or name of the attribute
 	 * @param value the value of the attribute
-	 * @throws NoSuchElementException if no room exists with the given id
+	 * @throws NoSuchRoomException if no room exists with the given id
 	 */
 	public void putRoomAttribute(int roomId, String key, JSONObject value) {
-		JSONObject request = new JSONObject();
-		setAction(request, ActionCode.PUT_ROOM_ATTRIBUTE);
-		request.setInt("roomId", roomId);
-		request.setString("key", key);
+		await(putRoomAttributeAsync(roomId, key, value));
+	}
+	
+	/**
+	 * Add a single attribute to a room.
+	 * @param roomId the unique id of the room to add an attribute to
+	 * @param key the key or name of the attribute
+	 * @param value the value of the attribute
+	 * @throws NoSuchRoomException if no room exists with the given id
+	 */
+	public void putRoomAttribute(int roomId, String key, JSONArray value) {
+		await(putRoomAttributeAsync(roomId, key, value));
+	}
+	
+	/**
+	 * Add a single attribute to a room.
+	 * @param roomId the unique id of the room to add an attribute to
+	 * @param key the key or name of the attribute
+	 * @param value the value of the attribute
+	 * @throws NoSuchRoomException if no room exists with the given id
+	 */
+	public void putRoomAttribute(int roomId, String key, float value) {
+		await(putRoomAttributeAsync(roomId, key, value));
+	}
+	
+	/**
+	 * Add a single attribute to a room.
+	 * @param roomId the unique id of the room to add an attribute to
+	 * @param key the key or name of the attribute
+	 * @param value the value of the attribute
+	 * @throws NoSuchRoomException if no room exists with the given id
+	 */
+	public void putRoomAttribute(int roomId, String key, double value) {
+		await(putRoomAttributeAsync(roomId, key, value));
+	}
+	
+	/**
+	 * Add a single attribute to a room.
+	 * @param roomId the unique id of the room to add an attribute to
+	 * @param key the key or name of the attribute
+	 * @param value the value of the attribute
+	 * @throws NoSuchRoomException if no room exists with the given id
+	 */
+	public void putRoomAttribute(int roomId, String key, Long value) {
+		await(putRoomAttributeAsync(roomId, key, value));
+	}
+	
+	/**
+	 * Add a single attribute to a room without waiting for the server. See putRoomAttribute.
+	 * @param roomId the unique id of the room to add an attribute to
+	 * @param key the key or name of the attribute
+	 * @param value the value of the attribute
+	 * @return a future completed once the attribute is set, or completed exceptionally with
+	 *         NoSuchRoomException
+	 */
+	public CompletableFuture<Void> putRoomAttributeAsync(int roomId, String key, String value) {
+		JSONObject request = attributeRequest(roomId, key);
+		request.setString("value", value);
+		return putRoomAttribute(request, roomId);
+	}
+	
+	/**
+	 * Add a single attribute to a room without waiting for the server. See putRoomAttribute.
+	 * @param roomId the unique id of the room to add an attribute to
+	 * @param key the key or name of the attribute
+	 * @param value the value of the attribute
+	 * @return a future completed once the attribute is set, or completed exceptionally with
+	 *         NoSuchRoomException
+	 */
+	public CompletableFuture<Void> putRoomAttributeAsync(int roomId, String key, int value) {
+		JSONObject request = attributeRequest(roomId, key);
+		request.setInt("value", value);
+		return putRoomAttribute(request, roomId);
+	}
+	
+	/**
+	 * Add a single attribute to a room without waiting for the server. See putRoomAttribute.
+	 * @param roomId the unique id of the room to add an attribute to
+	 * @param key the key or name of the attribute
+	 * @param value the value of the attribute
+	 * @return a future completed once the attribute is set, or completed exceptionally with
+	 *         NoSuchRoomException
+	 */
+	public CompletableFuture<Void> putRoomAttributeAsync(int roomId, String key, boolean value) {
+		JSONObject request = attributeRequest(roomId, key);
+		request.setBoolean("value", value);
+		return putRoomAttribute(request, roomId);
+	}
+	
+	/**
+	 * Add a single attribute to a room without waiting for the server. See putRoomAttribute.
+	 * @param roomId the unique id of the room to add an attribute to
+	 * @param key the key or name of the attribute
+	 * @param value the value of the attribute
+	 * @return a future completed once the attribute is set, or completed exceptionally with
+	 *         NoSuchRoomException
+	 */
+	public CompletableFuture<Void> putRoomAttributeAsync(int roomId, String key, JSONObject value) {
+		JSONObject request = attributeRequest(roomId, key);
 		request.setJSONObject("value", value);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.PUT_ROOM_ATTRIBUTE);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ROOM_NOT_FOUND:
-				throw new NoSuchElementException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to add room attribute.");
-			}
-		}
+		return putRoomAttribute(request, roomId);
 	}
 	
 	/**
-	 * Add a single attribute to a room.
+	 * Add a single attribute to a room without waiting for the server. See putRoomAttribute.
 	 * @param roomId the unique id of the room to add an attribute to
 	 * @param key the key or name of the attribute
 	 * @param value the value of the attribute
-	 * @throws NoSuchRoomException if no room exists with the given id
+	 * @return a future completed once the attribute is set, or completed exceptionally with
+	 *         NoSuchRoomException
 	 */
-	public void putRoomAttribute(int roomId, String key, JSONArray value) {
-		JSONObject request = new JSONObject();
-		setAction(request, ActionCode.PUT_ROOM_ATTRIBUTE);
-		request.setInt("roomId", roomId);
-		request.setString("key", key);
+	public CompletableFuture<Void> putRoomAttributeAsync(int roomId, String key, JSONArray value) {
+		JSONObject request = attributeRequest(roomId, key);
 		request.setJSONArray("value", value);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.PUT_ROOM_ATTRIBUTE);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ROOM_NOT_FOUND:
-				throw new NoSuchRoomException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to add room attribute.");
-			}
-		}
+		return putRoomAttribute(request, roomId);
 	}
 	
 	/**
-	 * Add a single attribute to a room.
+	 * Add a single attribute to a room without waiting for the server. See putRoomAttribute.
 	 * @param roomId the unique id of the room to add an attribute to
 	 * @param key the key or name of the attribute
 	 * @param value the value of the attribute
-	 * @throws NoSuchRoomException if no room exists with the given id
+	 * @return a future completed once the attribute is set, or completed exceptionally with
+	 *         NoSuchRoomException
 	 */
-	public void putRoomAttribute(int roomId, String key, float value) {
-		JSONObject request = new JSONObject();
-		setAction(request, ActionCode.PUT_ROOM_ATTRIBUTE);
-		request.setInt("roomId", roomId);
-		request.setString("key", key);
+	public CompletableFuture<Void> putRoomAttributeAsync(int roomId, String key, float value) {
+		JSONObject request = attributeRequest(roomId, key);
 		request.setFloat("value", value);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.PUT_ROOM_ATTRIBUTE);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ROOM_NOT_FOUND:
-				throw new NoSuchRoomException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to add room attribute.");
-			}
-		}
+		return putRoomAttribute(request, roomId);
 	}
 	
 	/**
-	 * Add a single attribute to a room.
+	 * Add a single attribute to a room without waiting for the server. See putRoomAttribute.
 	 * @param roomId the unique id of the room to add an attribute to
 	 * @param key the key or name of the attribute
 	 * @param value the value of the attribute
-	 * @throws NoSuchElementException if no room exists with the given id
+	 * @return a future completed once the attribute is set, or completed exceptionally with
+	 *         NoSuchRoomException
 	 */
-	public void putRoomAttribute(int roomId, String key, double value) {
-		JSONObject request = new JSONObject();
-		setAction(request, ActionCode.PUT_ROOM_ATTRIBUTE);
-		request.setInt("roomId", roomId);
-		request.setString("key", key);
+	public CompletableFuture<Void> putRoomAttributeAsync(int roomId, String key, double value) {
+		JSONObject request = attributeRequest(roomId, key);
 		request.setDouble("value", value);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.PUT_ROOM_ATTRIBUTE);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ROOM_NOT_FOUND:
-				throw new NoSuchElementException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to add room attribute.");
-			}
-		}
+		return putRoomAttribute(request, roomId);
 	}
 	
 	/**
-	 * Add a single attribute to a room.
+	 * Add a single attribute to a room without waiting for the server. See putRoomAttribute.
 	 * @param roomId the unique id of the room to add an attribute to
 	 * @param key the key or name of the attribute
 	 * @param value the value of the attribute
-	 * @throws NoSuchElementException if no room exists with the given id
+	 * @return a future completed once the attribute is set, or completed exceptionally with
+	 *         NoSuchRoomException
 	 */
-	public void putRoomAttribute(int roomId, String key, Long value) {
+	public CompletableFuture<Void> putRoomAttributeAsync(int roomId, String key, Long value) {
+		JSONObject request = attributeRequest(roomId, key);
+		request.setLong("value", value);
+		return putRoomAttribute(request, roomId);
+	}
+	
+	/**
+	 * Start a PUT_ROOM_ATTRIBUTE request, which only needs its value to be set.
+	 */
+	private JSONObject attributeRequest(int roomId, String key) {
 		JSONObject request = new JSONObject();
 		setAction(request, ActionCode.PUT_ROOM_ATTRIBUTE);
 		request.setInt("roomId", roomId);
 		request.setString("key", key);
-		request.setLong("value", value);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.PUT_ROOM_ATTRIBUTE);
-		if (response.getString("status").equals("error")) {
-			switch (ErrorCode.valueOf(response.getString("error"))) {
-			case ROOM_NOT_FOUND:
-				throw new NoSuchElementException("No room exists with id: " + roomId);
-			default:
-				throw new RuntimeException("Failed to add room attribute.");
+		return request;
+	}
+	
+	/**
+	 * Send a PUT_ROOM_ATTRIBUTE request that has its value set.
+	 */
+	private CompletableFuture<Void> putRoomAttribute(JSONObject request, int roomId) {
+		return request(request, ActionCode.PUT_ROOM_ATTRIBUTE, response -> {
+			if (response.getString("status").equals("error")) {
+				switch (ErrorCode.valueOf(response.getString("error"))) {
+				case ROOM_NOT_FOUND:
+					throw new NoSuchRoomException("No room exists with id: " + roomId);
+				default:
+					throw new RuntimeException("Failed to add room attribute.");
+				}
 			}
-		}
+			return null;
+		});
 	}
 	
 	/**
@@ -471,29 +1121,48 @@ public class GameClient {
 	 * @param attributes the object containing the attributes to set for the room
 	 */
 	public void setServerAttributes(JSONObject attributes) {
+		await(setServerAttributesAsync(attributes));
+	}
+	
+	/**
+	 * Set the attributes for the server without waiting for it. See setServerAttributes.
+	 * @param attributes the object containing the attributes to set for the room
+	 * @return a future completed once the attributes are set
+	 */
+	public CompletableFuture<Void> setServerAttributesAsync(JSONObject attributes) {
 		JSONObject request = new JSONObject();
 		setAction(request, ActionCode.SET_SERVER_ATTRIBUTES);
 		request.setJSONObject("attributes", attributes);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.SET_SERVER_ATTRIBUTES);
-		if (response.getString("status").equals("error")) {
-			throw new RuntimeException("Failed to add server attribute.");
-		}
+		return request(request, ActionCode.SET_SERVER_ATTRIBUTES, response -> {
+			if (response.getString("status").equals("error")) {
+				throw new RuntimeException("Failed to add server attribute.");
+			}
+			return null;
+		});
 	}
-		
+	
 	/**
 	 * Get the attributes for the server as a JSONObject.
+	 * @return the server's attributes
+	 */
+	public JSONObject getServerAttributes() {
+		return await(getServerAttributesAsync());
+	}
+	
+	/**
+	 * Get the attributes for the server without waiting for it. See getServerAttributes.
+	 * @return a future completed with the server's attributes
 	 */
-	public void getServerAttributes() {
+	public CompletableFuture<JSONObject> getServerAttributesAsync() {
 		JSONObject request = new JSONObject();
 		setAction(request, ActionCode.GET_SERVER_ATTRIBUTES);
-		send(request);
-		JSONObject response = waitForFirstAction(ActionCode.GET_SERVER_ATTRIBUTES);
-		if (response.getString("status").equals("error")) {
-			throw new RuntimeException("Failed to get server attributes.");
-		}
+		return request(request, ActionCode.GET_SERVER_ATTRIBUTES, response -> {
+			if (response.getString("status").equals("error")) {
+				throw new RuntimeException("Failed to get server attributes.");
+			}
+			return response.getJSONObject("attributes");
+		});
 	}
-	
 	/**
 	 * Send a message to a single client.
 	 * @param recipientId the unique id of the message recipient
@@ -538,19 +1207,201 @@ public class GameClient {
 		send(request);
 	}
 	
+	/**
+	 * Check if the server relays unreliable messages, which it only does if it has called enableUnreliable.
+	 * @return true if this client can send and receive unreliable messages
+	 */
+	public boolean supportsUnreliable() {
+		return datagrams != null;
+	}
+	
+	/**
+	 * Send a message to a single client over UDP. Unreliable messages may be lost or arrive out
+	 * of order, and older ones are dropped by their recipients, but they never wait behind
+	 * a message that was lost. They suit updates that are soon replaced, like positions.
+	 * @param recipientId the unique id of the message recipient
+	 * @param message the body of the message
+	 * @throws IllegalStateException if the server doesn't relay unreliable messages
+	 * @throws IllegalArgumentException if the message is too large to fit in a datagram
+	 */
+	public void sendUnreliable(int recipientId, JSONObject message) {
+		sendUnreliable(new int[] { recipientId }, message);
+	}
+	
+	/**
+	 * Send a message to multiple clients over UDP. See sendUnreliable(int, JSONObject).
+	 * @param recipientIds an array of the unique ids of all message recipients
+	 * @param message the body of the message
+	 * @throws IllegalStateException if the server doesn't relay unreliable messages
+	 * @throws IllegalArgumentException if the message is too large to fit in a datagram
+	 */
+	public void sendUnreliable(int[] recipientIds, JSONObject message) {
+		byte[] body = encodeUnreliable(message);
+		ByteBuffer datagram = datagram(DatagramRelay.SEND, nextSequence.incrementAndGet(),
+				2 + recipientIds.length * 4 + body.length);
+		datagram.putShort((short) recipientIds.length);
+		for (int recipientId : recipientIds) {
+			datagram.putInt(recipientId);
+		}
+		datagram.put(body);
+		sendDatagram(datagram);
+	}
+	
+	/**
+	 * Send a message over UDP to all other clients in the same room as this client. Unlike
+	 * broadcastMessage, this client doesn't receive it. If this client is not in a room,
+	 * this method has no effect. See sendUnreliable(int, JSONObject).
+	 * @param message the body of the message
+	 * @throws IllegalStateException if the server doesn't relay unreliable messages
+	 * @throws IllegalArgumentException if the message is too large to fit in a datagram
+	 */
+	public void broadcastUnreliable(JSONObject message) {
+		byte[] body = encodeUnreliable(message);
+		ByteBuffer datagram = datagram(DatagramRelay.BROADCAST, nextSequence.incrementAndGet(), body.length);
+		datagram.put(body);
+		sendDatagram(datagram);
+	}
+	
+	/**
+	 * Helper method to encode the body of an unreliable message.
+	 */
+	private byte[] encodeUnreliable(JSONObject message) {
+		if (datagrams == null) {
+			throw new IllegalStateException("The server doesn't relay unreliable messages.");
+		}
+		return Codec.BINARY.encode(message);
+	}
+	
+	/**
+	 * Helper method to start a datagram to the server, with room for the given number of bytes after the header.
+	 */
+	private ByteBuffer datagram(byte kind, int sequence, int length) {
+		if (DatagramRelay.CLIENT_HEADER + length > DatagramRelay.MAX_DATAGRAM) {
+			throw new IllegalArgumentException("The message is too large to send unreliably.");
+		}
+		ByteBuffer datagram = ByteBuffer.allocate(DatagramRelay.CLIENT_HEADER + length);
+		datagram.put(kind);
+		datagram.putInt(id);
+		datagram.putInt(datagramToken);
+		datagram.putInt(sequence);
+		return datagram;
+	}
+	
+	/**
+	 * Send a datagram to the server. This may be called from many threads at once.
+	 */
+	private void sendDatagram(ByteBuffer datagram) {
+		datagram.flip();
+		try {
+			datagrams.write(datagram);
+		} catch (IOException e) {
+			// Lost, like any other datagram
+		}
+	}
+	
+	/**
+	 * Get the next unreliable message received by this client. Only the newest messages are
+	 * kept if the sketch falls behind, since unreliable messages are usually soon replaced.
+	 * @return the message, or null if there are no unreliable messages
+	 */
+	public Message getNextUnreliableMessage() {
+		return unreliableMessages.poll();
+	}
+	
+	/**
+	 * Get all unreliable messages received by this client.
+	 * @return an array containing all unreliable messages, in the order they arrived
+	 */
+	public Message[] getUnreliableMessages() {
+		ArrayList<Message> received = new ArrayList<>();
+		unreliableMessages.drainTo(received);
+		return received.toArray(new Message[0]);
+	}
+	
+	/**
+	 * Merge values into this client's part of its room's state, overwriting the keys it already
+	 * has. Instead of being sent to the other clients right away, the state of every client in
+	 * the room is sent to all of them at once, with the room's next tick. If this client is not
+	 * in a room, this method has no effect.
+	 * @param state the values to merge
+	 */
+	public void updateState(JSONObject state) {
+		JSONObject request = new JSONObject();
+		setAction(request, ActionCode.UPDATE_STATE);
+		request.setJSONObject("state", state);
+		send(request);
+	}
+	
+	/**
+	 * Pass every message to a listener as it arrives, instead of queueing it for getNextMessage.
+	 * Messages that were already queued stay queued. This replaces any previous listener,
+	 * including the sketch's messageEvent method.
+	 * @param listener the listener to call with each message
+	 * @param dispatch which thread to call the listener on
+	 */
+	public void setMessageListener(MessageListener listener, MessageDispatch dispatch) {
+		setMessageListener(listener, dispatch, 0);
+	}
+	
+	/**
+	 * Pass every message to a listener as it arrives, instead of queueing it for getNextMessage.
+	 * Messages that were already queued stay queued. This replaces any previous listener,
+	 * including the sketch's messageEvent method.
+	 * @param listener the listener to call with each message
+	 * @param dispatch which thread to call the listener on
+	 * @param maxBatch the most messages to pass to the listener per frame on the sketch thread,
+	 *        leaving the rest for the next frame, or 0 for no limit
+	 */
+	public void setMessageListener(MessageListener listener, MessageDispatch dispatch, int maxBatch) {
+		if (listener == null || dispatch == null) {
+			throw new NullPointerException("The listener and dispatch must not be null.");
+		}
+		if (maxBatch < 0) {
+			throw new IllegalArgumentException("The batch size must not be negative.");
+		}
+		this.dispatch = dispatch;
+		this.maxBatch = maxBatch;
+		this.listener = listener;
+	}
+	
+	/**
+	 * Stop passing messages to the listener, and queue them for getNextMessage again.
+	 */
+	public void removeMessageListener() {
+		listener = null;
+	}
+	
+	/**
+	 * Pass the messages received since the last frame to the listener, if it is called on the
+	 * sketch thread. Processing calls this before each draw(), so it never needs to be called
+	 * directly, except by sketches without a draw loop.
+	 */
+	public void pre() {
+		MessageListener listener = this.listener;
+		if (listener == null || dispatch != MessageDispatch.SKETCH_THREAD || handoff.isEmpty()) {
+			// If the listener changed, getNextMessage reads the messages that were handed off
+			return;
+		}
+		// Messages that arrive while the listener runs wait for the next frame
+		int batch = maxBatch > 0 ? maxBatch : handoff.size();
+		Message message;
+		for (int i=0; i<batch && (message = handoff.poll()) != null; i++) {
+			listener.messageReceived(message);
+		}
+	}
+	
 	/**
 	 * Get the next message received by this client from the queue.
 	 * If there are no messages, this method returns null.
 	 * @return the message text, or null if there are no messages
 	 */
 	public Message getNextMessage() {
-		JSONObject data = getFirstAction(ActionCode.GET_MESSAGE);
-		if (data != null) {
-			JSONObject body = data.getJSONObject("message");
-			int senderId = data.getInt("senderId");
-			return new Message(senderId, body);
+		Message message = null;
+		if (!handingOff()) {
+			// Handed off before the listener changed, so older than the rest
+			message = handoff.poll();
 		}
-		return null;
+		return message == null ? messages.poll() : message;
 	}
 	
 	/**
@@ -558,14 +1409,19 @@ public class GameClient {
 	 * @return an array containing all messages, in increasing chronological order
 	 */
 	public Message[] getMessages() {
-		JSONObject[] data = getAllActions(ActionCode.GET_MESSAGE);
-		Message[] messages = new Message[data.length];
-		for (int i=0; i<data.length; i++) {
-			JSONObject body = data[i].getJSONObject("message");
-			int senderId = data[i].getInt("senderId");
-			messages[i] = new Message(senderId, body);
+		ArrayList<Message> received = new ArrayList<>();
+		if (!handingOff()) {
+			handoff.drainTo(received);
 		}
-		return messages;
+		messages.drainTo(received);
+		return received.toArray(new Message[0]);
+	}
+	
+	/**
+	 * Return true if messages are being handed off to a listener on the sketch thread.
+	 */
+	private boolean handingOff() {
+		return listener != null && dispatch == MessageDispatch.SKETCH_THREAD;
 	}
 		
 	/**
@@ -578,21 +1434,179 @@ public class GameClient {
 	}
 	
 	/**
-	 * Fetch new data for this client and put it into the buffer.
+	 * Construct a Message object from the given data, and the body that was left encoded if any.
 	 */
-	private void fetchData() {
-		if (client.available() > 0) {
-			try {
-				String s = client.readStringUntil(SEP);
-				JSONObject data = JSONObject.parse(s);
-				if (data.hasKey("action")) {
-					String action = data.getString("action");
-					appendAction(ActionCode.valueOf(action), data);
+	private Message constructMessage(JSONObject data, RawValue body) {
+		int senderId = data.getInt("senderId");
+		return body != null ? new Message(senderId, body) : new Message(senderId, data.getJSONObject("message"));
+	}
+	
+	/**
+	 * Construct an array of RoomInfo objects from the given data.
+	 */
+	private RoomInfo[] constructRoomInfoArray(JSONArray roomsInfo) {
+		RoomInfo[] infoArray = new RoomInfo[roomsInfo.size()];
+		for (int i=0; i<infoArray.length; i++) {
+			infoArray[i] = constructRoomInfo(roomsInfo.getJSONObject(i));
+		}
+		return infoArray;
+	}
+	
+	/**
+	 * Construct a RoomUpdate object from the given data. Keys with nothing to report are left out.
+	 */
+	private RoomUpdate constructRoomUpdate(JSONObject data) {
+		int[] joined = data.hasKey("joined") ? data.getJSONArray("joined").getIntArray() : new int[0];
+		int[] left = data.hasKey("left") ? data.getJSONArray("left").getIntArray() : new int[0];
+		JSONObject attributes = data.hasKey("attributes") ? data.getJSONObject("attributes") : new JSONObject();
+		String[] removed = data.hasKey("removed") ? data.getJSONArray("removed").getStringArray() : new String[0];
+		boolean closed = data.hasKey("closed") && data.getBoolean("closed");
+		return new RoomUpdate(data.getInt("roomId"), data.getInt("size"), joined, left, attributes, removed, closed);
+	}
+	
+	/**
+	 * Construct a RoomSnapshot object from the given data.
+	 */
+	private RoomSnapshot constructRoomSnapshot(JSONObject data) {
+		return new RoomSnapshot(data.getInt("roomId"), data.getInt("tick"), data.getInt("tickRate"),
+				data.getJSONObject("state"));
+	}
+	
+	/**
+	 * Wait for data from the server, and handle every complete frame that has arrived.
+	 * @return false if the connection has been closed
+	 */
+	private boolean receive() {
+		int read;
+		try {
+			read = decoder.fill(channel);
+		} catch (IOException e) {
+			read = -1;
+		}
+		if (read < 0) {
+			return false;
+		}
+		
+		int frames = 0;
+		try {
+			while (decoder.next()) {
+				frames++;
+				handleFrame();
+			}
+		} catch (IllegalStateException e) {
+			// A malformed length prefix or a frame that is too large, so the connection is unusable
+			return false;
+		} finally {
+			if (frames > 0) {
+				framesReceived += frames;
+				receivePasses++;
+				largestBatch = Math.max(largestBatch, frames);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Pass the frame that was just decoded to whoever is waiting for it, or put it into the buffer.
+	 */
+	private void handleFrame() {
+		try {
+			// Message bodies are only decoded if the sketch asks for them
+			messageBody[0] = null;
+			JSONObject data = receiveCodec.decode(decoder.array(), decoder.frameStart(), decoder.frameLength(),
+					"message", messageBody);
+			if (data.hasKey("action")) {
+				if (data.hasKey("framing")) {
+					// The server has agreed to switch, starting with the next frame
+					decoder.setFraming(Framing.valueOf(data.getString("framing")));
+					receiveCodec = Codec.forName(data.getString("codec"));
 				}
-			} catch (RuntimeException e) {
-				// Invalid JSON string
+				if (data.hasKey("requestId")) {
+					// Responses that nobody is waiting for any more are dropped
+					CompletableFuture<JSONObject> response = pending.remove(data.getInt("requestId"));
+					if (response != null) {
+						response.complete(data);
+					}
+					return;
+				}
+				ActionCode action = ActionCode.valueOf(data.getString("action"));
+				if (action == ActionCode.GET_MESSAGE) {
+					dispatchMessage(constructMessage(data, messageBody[0]));
+				} else if (!completeWaiting(action, data)) {
+					appendAction(action, data);
+				}
+			}
+		} catch (RuntimeException e) {
+			// Invalid data
+		}
+	}
+	
+	/**
+	 * Pass a message to the listener, hand it off to be passed on the sketch thread, or queue it
+	 * for getNextMessage if there is no listener.
+	 */
+	private void dispatchMessage(Message message) {
+		MessageListener listener = this.listener;
+		if (listener == null) {
+			messages.offer(message, overflowPolicy);
+			return;
+		}
+		if (dispatch == MessageDispatch.SKETCH_THREAD) {
+			handoff.offer(message, overflowPolicy);
+			return;
+		}
+		try {
+			listener.messageReceived(message);
+		} catch (RuntimeException e) {
+			// Keep receiving, but let the sketch find out about the listener's bug
+			listenerFailures++;
+			Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+			if (handler != null) {
+				handler.uncaughtException(Thread.currentThread(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Wait for a datagram from the server, and queue it if it is a message newer than the last
+	 * one from its sender.
+	 * @return false if the side channel has been closed
+	 */
+	private boolean receiveDatagram(ByteBuffer in) {
+		in.clear();
+		try {
+			datagrams.read(in);
+		} catch (IOException e) {
+			// Such as when nothing is listening on the server's UDP port yet
+			return datagrams.isOpen();
+		}
+		in.flip();
+		if (in.remaining() == 0) {
+			return true;
+		}
+		byte kind = in.get();
+		if (kind == DatagramRelay.HELLO) {
+			if (datagramsOpened.complete(null)) {
+				hello.cancel(false);
+			}
+		} else if (kind == DatagramRelay.MESSAGE && in.remaining() >= DatagramRelay.MESSAGE_HEADER - 1) {
+			int senderId = in.getInt();
+			int sequence = in.getInt();
+			int[] last = lastSequences.get(senderId);
+			if (last == null) {
+				lastSequences.put(senderId, new int[] { sequence });
+			} else if (sequence - last[0] > 0) {
+				// Subtracting keeps working once the sequence numbers wrap around
+				last[0] = sequence;
+			} else {
+				staleDatagrams++;
+				return true;
 			}
+			RawValue body = BinaryCodec.rawObject(in.array(), in.position(), in.remaining());
+			// Newer messages replace older ones, so never hold up receiving them
+			unreliableMessages.offer(new Message(senderId, body), OverflowPolicy.DROP_OLDEST);
 		}
+		return true;
 	}
 	
 	/**
@@ -601,13 +1615,13 @@ public class GameClient {
 	 * @param data the action/response data
 	 */
 	private void appendAction(ActionCode action, JSONObject data) {
-		String actionStr = action.name();
-		Queue<JSONObject> buffer = dataBuffer.get(actionStr);
+		RingBuffer<JSONObject> buffer = dataBuffer.get(action.ordinal());
 		if (buffer == null) {
-			buffer = new ConcurrentLinkedQueue<>();
-			dataBuffer.put(actionStr, buffer);
+			// Only the fetcher thread adds data, so nothing else can be creating it
+			buffer = new RingBuffer<>(bufferCapacity);
+			dataBuffer.set(action.ordinal(), buffer);
 		}
-		buffer.add(data);
+		buffer.offer(data, overflowPolicy);
 	}
 	
 	/**
@@ -616,14 +1630,12 @@ public class GameClient {
 	 * @returns an array containing all data objects received, in increasing chronological order
 	 */
 	private JSONObject[] getAllActions(ActionCode action) {
-		String actionStr = action.name();
-		Queue<JSONObject> buffer = dataBuffer.get(actionStr);
+		RingBuffer<JSONObject> buffer = dataBuffer.get(action.ordinal());
+		ArrayList<JSONObject> actions = new ArrayList<>();
 		if (buffer != null) {
-			JSONObject[] actions = buffer.toArray(new JSONObject[0]);
-			buffer.clear();
-			return actions;
+			buffer.drainTo(actions);
 		}
-		return new JSONObject[0];
+		return actions.toArray(new JSONObject[0]);
 	}
 	
 	/**
@@ -632,8 +1644,7 @@ public class GameClient {
 	 * @returns the first data received with given action type, or null if none exists
 	 */
 	private JSONObject getFirstAction(ActionCode action) {
-		String actionStr = action.name();
-		Queue<JSONObject> buffer = dataBuffer.get(actionStr);
+		RingBuffer<JSONObject> buffer = dataBuffer.get(action.ordinal());
 		if (buffer != null) {
 			return buffer.poll();
 		}
@@ -641,30 +1652,144 @@ public class GameClient {
 	}
 	
 	/**
-	 * Get the first data object received with the given action type, and remove it from the buffer.
-	 * If no such object exists, this method will wait until one is received or until it times out.
-	 * @param action the type of action to search for
-	 * @returns the first data received with given action type
+	 * Send a request and handle its response once it arrives, without waiting for it.
+	 * Requests can be sent from many threads at once.
+	 * @param request the request to send
+	 * @param action the type of action of the request
+	 * @param handler turns the response into the result, or throws the exception to fail with
+	 * @return a future completed with the result on the fetcher thread, or completed exceptionally
+	 *         with the exception the handler threw or a RuntimeException if the request timed out
 	 */
-	private JSONObject waitForFirstAction(ActionCode action) {
-		long startTime = System.currentTimeMillis();
-		JSONObject data;
-		do {
-			if (System.currentTimeMillis() - startTime >= TIMEOUT) {
-				throw new RuntimeException("Timed out waiting for action: " + action);
+	private <T> CompletableFuture<T> request(JSONObject request, ActionCode action, Function<JSONObject, T> handler) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		sendRequest(request, action).whenComplete((response, e) -> {
+			if (e != null) {
+				result.completeExceptionally(e);
+				return;
+			}
+			try {
+				result.complete(handler.apply(response));
+			} catch (RuntimeException handlerException) {
+				result.completeExceptionally(handlerException);
 			}
-			data = getFirstAction(action);
-		} while (data == null);
-		return data;
+		});
+		return result;
 	}
-
+	
+	/**
+	 * Send a request that expects a response. Its response can then be waited for without
+	 * getting mixed up with the response to any other request, even of the same type.
+	 * If the server doesn't support request ids, the response is instead the first one received
+	 * with the same action type that nobody else is waiting for.
+	 * @param request the request to send
+	 * @param action the type of action of the request
+	 * @return a future completed with the response, or completed exceptionally if it times out
+	 */
+	private CompletableFuture<JSONObject> sendRequest(JSONObject request, ActionCode action) {
+		CompletableFuture<JSONObject> response;
+		if (requestIds) {
+			int requestId = nextRequestId.getAndIncrement() & Integer.MAX_VALUE;
+			request.setInt("requestId", requestId);
+			response = new CompletableFuture<>();
+			pending.put(requestId, response);
+			expire(response, action, () -> pending.remove(requestId));
+		} else {
+			response = expect(action);
+		}
+		send(request);
+		return response;
+	}
+	
+	/**
+	 * Wait for the next response with the given action type that doesn't carry a request id.
+	 * This must be called before the request is sent, so that the response can't arrive first.
+	 * @param action the type of action to wait for
+	 * @return a future completed with the response, or completed exceptionally if it times out
+	 */
+	private CompletableFuture<JSONObject> expect(ActionCode action) {
+		CompletableFuture<JSONObject> response = new CompletableFuture<>();
+		Queue<CompletableFuture<JSONObject>> queue = waiting.computeIfAbsent(action,
+				a -> new ConcurrentLinkedQueue<>());
+		queue.add(response);
+		expire(response, action, () -> queue.remove(response));
+		return response;
+	}
+	
+	/**
+	 * Fail a response that hasn't arrived within the timeout, and stop waiting for it once it is
+	 * complete either way.
+	 * @param response the response being waited for
+	 * @param action the type of action of the response
+	 * @param forget stops the fetcher thread from completing the response
+	 */
+	private void expire(CompletableFuture<JSONObject> response, ActionCode action, Runnable forget) {
+		ScheduledFuture<?> timer = TIMER.schedule(() -> {
+			response.completeExceptionally(new RuntimeException("Timed out waiting for action: " + action));
+		}, timeout, TimeUnit.MILLISECONDS);
+		response.whenComplete((data, e) -> {
+			// Responses that arrive after this are dropped
+			forget.run();
+			timer.cancel(false);
+		});
+	}
+	
+	/**
+	 * Complete the oldest request of the given type that is waiting for a response without a request id.
+	 * @return true if such a request was waiting
+	 */
+	private boolean completeWaiting(ActionCode action, JSONObject data) {
+		Queue<CompletableFuture<JSONObject>> queue = waiting.get(action);
+		CompletableFuture<JSONObject> response;
+		while (queue != null && (response = queue.poll()) != null) {
+			if (response.complete(data)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
-	 * Send data to the server.
+	 * Wait for a future to be completed, and return its result. The waiting thread sleeps until
+	 * the fetcher thread or the timer wakes it, instead of polling.
+	 * @throws RuntimeException the exception the future was completed with
+	 */
+	private <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for a response.", e);
+		}
+	}
+	
+	/**
+	 * Return a future that has already failed with the given exception.
+	 */
+	private static <T> CompletableFuture<T> failed(RuntimeException e) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(e);
+		return future;
+	}
+	
+	/**
+	 * Send data to the server. This may be called from many threads at once.
 	 * @param data the data to send
 	 */
-	private void send(JSONObject data) {
-		String messageStr = data.toString();
-		client.write(messageStr + SEP);
+	private synchronized void send(JSONObject data) {
+		ByteBuffer buffer = ByteBuffer.wrap(framing.frame(codec.encode(data)));
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			// The fetcher thread notices that the connection is gone
+		}
 	}
 	
 	/** Helper method to set action from enum on data object. **/
@@ -674,12 +1799,11 @@ public class GameClient {
 	}
 	
 	/**
-	 * Runs in its own thread and continuously fetches new data for the client.
+	 * Runs in its own thread and continuously fetches new data for the client, sleeping
+	 * until the server sends some.
 	 * @author jediahkatz
 	 */
 	class DataFetcher implements Runnable {
-		// How many ms to sleep between fetches
-		private final int SLEEP_TIME = 10;
 		private volatile boolean shutdown = false;
 		private GameClient client;
 		
@@ -689,13 +1813,12 @@ public class GameClient {
 
 		@Override
 		public void run() {
-			while (true) {
-				client.fetchData();
-				try {
-					Thread.sleep(10);
-				} catch (InterruptedException e) {
-				}
-				if (shutdown) {
+			while (!shutdown) {
+				if (!client.receive()) {
+					if (!shutdown) {
+						// The server closed the connection
+						client.close();
+					}
 					return;
 				}
 			}
@@ -706,6 +1829,31 @@ public class GameClient {
 		}
 	}
 	
+	/**
+	 * Runs in its own thread and receives unreliable messages for the client, sleeping until
+	 * the server sends some.
+	 * @author jediahkatz
+	 */
+	class DatagramFetcher implements Runnable {
+		private volatile boolean shutdown = false;
+		private GameClient client;
+		
+		DatagramFetcher(GameClient client) {
+			this.client = client;
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer in = ByteBuffer.allocate(DatagramRelay.MAX_DATAGRAM);
+			while (!shutdown && client.receiveDatagram(in)) {
+			}
+		}
+		
+		public void stop() {
+			shutdown = true;
+		}
+	}
+	
 	/**
 	 * Exception thrown when trying to join a full room.
 	 * @author jediahkatz
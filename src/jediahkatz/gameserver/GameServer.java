@@ -1,10 +1,18 @@
 package jediahkatz.gameserver;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map.Entry;
-
-import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import processing.core.*;
 import processing.net.*;
@@ -15,51 +23,154 @@ import processing.data.JSONObject;
  * @author jediahkatz
  */
 public class GameServer {
-	// Beep character - data separator
-	private final char SEP = (char) 7;
+	// Only one of these is used, depending on the transport
 	private Server server;
-	// Incrementing unique identifier to assign to clients and rooms
-	private int nextClientId = 0;
-	private int nextRoomId = 0;
+	private ServerRunner thread;
+	private EventLoop[] loops;
+	private BlockingServer blockingServer;
+	// Relays unreliable messages over UDP, or null if they haven't been enabled
+	private volatile DatagramRelay relay;
+	private final int port;
+	// The rooms and clients, split between the server's threads. Each thread runs one shard.
+	private final Shard[] shards;
+	// Server attributes belong to the first shard
 	private JSONObject attributes = new JSONObject();
-	// Data structures storing rooms/clients
-	private HashMap<Integer, Room> rooms = new HashMap<>();
-	private HashMap<Integer, processing.net.Client> clients = new HashMap<>();
-	private HashMap<Integer, Integer> clientIdToRoomId = new HashMap<>();
-	// Keep track of which clients have disconnected safely - this stores their hashcodes
-	private HashSet<Integer> disconnected = new HashSet<>();
-	
-	private final ServerRunner thread;
+	// Connections for the PROCESSING transport, which keep each client's partially received frames.
+	// Together with the shard's clients, this maps between clients and their ids both ways.
+	// A connection is in both from when it's registered until its client is disconnected.
+	private HashMap<Client, ProcessingConnection> processingConnections = new HashMap<>();
+	// Limits on how much can be queued for a client that isn't keeping up
+	private volatile long highWatermark = 4 * 1024 * 1024;
+	private volatile long lowWatermark = 1024 * 1024;
+	private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+	// When rooms are removed, and how long an empty room is kept for, in nanoseconds
+	private volatile RoomLifetime roomLifetime = RoomLifetime.PINNED;
+	private volatile long roomIdleTimeout = 0;
+	// Periodically has each shard remove its idle rooms, or null if rooms are pinned
+	private ScheduledExecutorService sweeper;
+	// Has each room's shard run the room's ticks, or null if no room has ticked yet
+	private ScheduledExecutorService ticker;
+	// How many times per second new rooms send their state, or 0 if they don't until asked to
+	private volatile int defaultTickRate = 0;
+	// The highest tick rate a room can have
+	private static final int MAX_TICK_RATE = 240;
+	// The number of shards that the BLOCKING transport's threads share
+	private static final int STRIPES = 16;
+	// The most removed rooms that each shard keeps to reuse
+	private static final int MAX_POOLED_ROOMS = 256;
+	// Reused for reading from processing.net clients
+	private final byte[] readBuffer = new byte[4096];
 	
 	/**
-	 * 
+	 * Create a server that uses the processing.net transport.
 	 * @param parent the current sketch (this)
 	 * @param port the port to transfer data over
 	 */
 	public GameServer(PApplet parent, int port) {
-		// Unfortunately the generic registerMethod is no longer supported. These will need to be called manually.
-		//parent.registerMethod("serverEvent", this);
-		//parent.registerMethod("disconnectEvent", this);
+		this(parent, port, Transport.PROCESSING);
+	}
+	
+	/**
+	 * Create a server that runs on a single thread.
+	 * @param parent the current sketch (this)
+	 * @param port the port to transfer data over
+	 * @param transport the networking layer to serve clients with
+	 */
+	public GameServer(PApplet parent, int port, Transport transport) {
+		this(parent, port, transport, 1);
+	}
+	
+	/**
+	 * Create a server that splits its rooms and clients between several threads.
+	 * Each thread owns the rooms and clients assigned to it, and asks the other threads
+	 * to do any work that involves theirs, so the threads never wait on each other.
+	 * Messages within a room are always delivered in the same order to every client in it.
+	 * @param parent the current sketch (this)
+	 * @param port the port to transfer data over
+	 * @param transport the networking layer to serve clients with
+	 * @param threads the number of threads to serve clients from, such as the number of cores.
+	 * The BLOCKING transport always has threads of its own for each client, so this must be 1.
+	 * @throws IllegalArgumentException if the transport can't run on that many threads
+	 */
+	public GameServer(PApplet parent, int port, Transport transport, int threads) {
+		if (threads < 1 || (threads > 1 && transport != Transport.NIO)) {
+			throw new IllegalArgumentException("The " + transport + " transport can't run on " + threads + " threads.");
+		}
 		parent.registerMethod("dispose", this);
-		server = new Server(parent, port);
-		
-		// Start a new thread to run the server on
-		thread = new ServerRunner(this);
-		new Thread(thread).start();
+		this.port = port;
+		int count = transport == Transport.BLOCKING ? STRIPES : threads;
+		shards = new Shard[count];
+		for (int i = 0; i < count; i++) {
+			shards[i] = new Shard(i, count);
+		}
+		switch (transport) {
+		case BLOCKING:
+			for (Shard shard : shards) {
+				shard.share(this::flush);
+			}
+			try {
+				blockingServer = new BlockingServer(this, shards, port);
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to start the server on port " + port, e);
+			}
+			// Start a new thread to accept clients on
+			new Thread(blockingServer).start();
+			break;
+		case NIO:
+			loops = new EventLoop[threads];
+			try {
+				ServerSocketChannel acceptor = EventLoop.listen(port);
+				for (int i = 0; i < threads; i++) {
+					loops[i] = new EventLoop(this, shards[i], i == 0 ? acceptor : null, loops);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to start the server on port " + port, e);
+			}
+			// Start a new thread to run each event loop on
+			for (EventLoop loop : loops) {
+				new Thread(loop).start();
+			}
+			break;
+		default:
+			// Unfortunately the generic registerMethod is no longer supported. These will need to be called manually.
+			//parent.registerMethod("serverEvent", this);
+			//parent.registerMethod("disconnectEvent", this);
+			server = new Server(parent, port);
+			
+			// Start a new thread to run the server on
+			thread = new ServerRunner(this);
+			new Thread(thread).start();
+		}
 	}
 	
 	/**
 	 * Run the server.
 	 */
 	private void run() {
+		Shard shard = shards[0];
+		shard.runTasks();
+		
 		Client client = server.available();
 		while (client != null) {
-			JSONObject data = getData(client);
-			if (data != null) {
-				handleData(client, data);
+			ProcessingConnection connection = processingConnections.get(client);
+			if (connection == null) {
+				// serverEvent hasn't been called for this client yet. It would be returned again,
+				// so read from the others next time, but still send what has been queued.
+				break;
+			}
+			int read = client.readBytes(readBuffer);
+			FrameDecoder decoder = connection.decoder;
+			decoder.feed(readBuffer, 0, read);
+			try {
+				while (decoder.next()) {
+					received(connection, decoder.array(), decoder.frameStart(), decoder.frameLength());
+				}
+			} catch (IllegalStateException e) {
+				disconnected(connection);
 			}
 			client = server.available();
 		}
+		flush(shard);
 	}
 	
 	/**
@@ -73,66 +184,424 @@ public class GameServer {
 	 * Shut down this server.
 	 */
 	public void stop() {
-		server.stop();
-		thread.stop();
+		synchronized (this) {
+			if (sweeper != null) {
+				sweeper.shutdownNow();
+			}
+			if (ticker != null) {
+				ticker.shutdownNow();
+			}
+		}
+		if (relay != null) {
+			relay.stop();
+		}
+		if (server != null) {
+			server.stop();
+			thread.stop();
+		} else if (blockingServer != null) {
+			blockingServer.stop();
+		} else {
+			for (EventLoop loop : loops) {
+				loop.stop();
+			}
+		}
 	}
 	
 	/**
 	 * This function is called automatically when a client connects to the server.
 	 * We automatically register the client.
+	 * This is only needed for the PROCESSING transport.
 	 */
 	public void serverEvent(Server server, Client client) {
-		JSONObject response = registerClient(client);
-		send(client, response);
+		// The client is registered on the server thread
+		Shard shard = shards[0];
+		ProcessingConnection connection = new ProcessingConnection(client);
+		shard.post(() -> {
+			processingConnections.put(client, connection);
+			connected(shard, connection);
+		});
 	}
 	
 	/**
 	 * This function is called automatically when a client disconnects.
 	 * We remove the client from our data structures if it hasn't already been.
+	 * This is only needed for the PROCESSING transport.
 	 */
 	public void disconnectEvent(Client client) {
-		if (!disconnected.contains(client.hashCode())) {
-			// Get the clientId from the client
-			Entry<Integer, Client> clientAndId = clients.entrySet().stream()
-					.filter(entry -> Objects.equals(entry.getValue(), client))
-					.findFirst().orElse(null);
-			if (clientAndId != null) {
-				int clientId = clientAndId.getKey();
-			    disconnect(clientId);
+		// The client is removed on the server thread
+		Shard shard = shards[0];
+		shard.post(() -> {
+			ProcessingConnection connection = processingConnections.get(client);
+			if (connection != null) {
+				disconnected(connection);
 			}
+		});
+	}
+	
+	/**
+	 * Register a client that has just connected.
+	 * @param shard the shard that the client's connection belongs to
+	 * @param connection the new client's connection
+	 */
+	void connected(Shard shard, Connection connection) {
+		connection.shard = shard;
+		JSONObject response = registerClient(shard, connection);
+		send(connection, response);
+	}
+	
+	/**
+	 * Handle a complete frame of data received from a client.
+	 * @param connection the client's connection
+	 * @param buf the array containing the frame
+	 * @param offset the index of the first byte of the frame
+	 * @param length the number of bytes in the frame
+	 */
+	void received(Connection connection, byte[] buf, int offset, int length) {
+		RawValue[] message = new RawValue[1];
+		JSONObject data = getData(connection, buf, offset, length, message);
+		if (data != null) {
+			received(connection, data, message[0]);
+		}
+	}
+	
+	/**
+	 * Handle a frame of data received from a client that has already been decoded with getData.
+	 * @param connection the client's connection
+	 * @param data the received data
+	 * @param message the encoded "message" of the received data, or null if it has none
+	 */
+	void received(Connection connection, JSONObject data, RawValue message) {
+		try {
+			handleData(connection, data, message);
+		} catch (RuntimeException e) {
+			// Missing or mistyped keys in the request
+		}
+	}
+	
+	/**
+	 * Remove a client whose connection has closed, if it hasn't been already.
+	 * @param connection the client's connection
+	 */
+	void disconnected(Connection connection) {
+		Shard shard = connection.shard;
+		if (connection.clientId >= 0 && shard.clients.get(connection.clientId) == connection) {
+			disconnect(shard, connection.clientId);
 		}
 	}
 	
 	/**
 	 * Send data to the specified client.
-	 * @param client the recipient of the data
+	 * @param connection the recipient of the data
 	 * @param data the message to send
 	 */
-	private void send(Client client, JSONObject data) {
-		String messageStr = data.toString();
-		client.write(messageStr + SEP);
+	private void send(Connection connection, JSONObject data) {
+		send(connection, new OutboundFrame(data));
+	}
+	
+	/**
+	 * Queue a frame to be sent to the specified client. It is written the next time the server 
+	 * flushes, along with anything else sent to the client in the meantime.
+	 * @param connection the recipient of the frame
+	 * @param frame the frame to send
+	 */
+	private void send(Connection connection, OutboundFrame frame) {
+		if (connection.isClosed()) {
+			return;
+		}
+		Shard shard = connection.shard;
+		OutboundQueue outbound = connection.outbound;
+		long queued = outbound.queuedBytes();
+		long dropped = outbound.framesDropped();
+		boolean wasEmpty = outbound.isEmpty();
+		if (!outbound.add(frame.bytes(connection.codec, connection.framing), frame.isDroppable(),
+				highWatermark, lowWatermark, slowConsumerPolicy)) {
+			// Disconnecting now could modify a room we're iterating over
+			shard.slowConsumers.add(connection);
+		}
+		if (wasEmpty && !outbound.isEmpty()) {
+			shard.unflushed.add(connection);
+		}
+		shard.queuedBytes += outbound.queuedBytes() - queued;
+		shard.framesDropped += outbound.framesDropped() - dropped;
+	}
+	
+	/**
+	 * Queue a response to be sent to a client from any shard. If the connection belongs to
+	 * another shard, the response is encoded before it is handed over, since it may refer to 
+	 * data that only this shard may read. The response echoes the request's id, if it has one.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
+	 * @param response the response to send
+	 */
+	private void reply(Shard shard, Request request, JSONObject response) {
+		if (request.id >= 0) {
+			response.setInt("requestId", request.id);
+		}
+		reply(shard, request.connection, new OutboundFrame(response));
+	}
+	
+	/**
+	 * Queue a response frame to be sent to a client from any shard. The frame may be shared
+	 * with other requests, so the request's id is added to a copy of its encoded bytes.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
+	 * @param frame the response to send
+	 */
+	private void reply(Shard shard, Request request, OutboundFrame frame) {
+		if (request.id >= 0) {
+			frame = frame.withField(request.connection.codec, "requestId", request.id);
+		}
+		reply(shard, request.connection, frame);
+	}
+	
+	/**
+	 * Queue a response frame to be sent to a client from any shard.
+	 * @param shard the shard of the current thread
+	 * @param connection the recipient of the response
+	 * @param frame the response to send
+	 */
+	private void reply(Shard shard, Connection connection, OutboundFrame frame) {
+		if (connection.shard == shard) {
+			send(connection, frame);
+		} else {
+			frame.bytes(connection.codec, connection.framing);
+			connection.shard.post(() -> send(connection, frame));
+		}
+	}
+	
+	/**
+	 * Flush every connection of a shard that has had frames queued since the last flush, after
+	 * disconnecting any slow consumers. This is called once per iteration of the shard's thread.
+	 * @param shard the shard to flush
+	 */
+	void flush(Shard shard) {
+		publishUpdates(shard);
+		for (Connection connection : shard.slowConsumers) {
+			disconnected(connection);
+		}
+		shard.slowConsumers.clear();
+		for (Connection connection : shard.unflushed) {
+			flush(connection);
+		}
+		shard.unflushed.clear();
+	}
+	
+	/**
+	 * Write as much of a connection's queued frames as possible.
+	 * @param connection the connection to flush
+	 */
+	void flush(Connection connection) {
+		if (connection.isClosed()) {
+			return;
+		}
+		Shard shard = connection.shard;
+		long written = connection.flush();
+		shard.queuedBytes -= written;
+		shard.bytesWritten += written;
+		shard.flushes++;
+	}
+	
+	/**
+	 * Limit how much data can be queued for a client that isn't reading it fast enough.
+	 * When a client's queue goes over the high watermark, the slow consumer policy applies
+	 * until the queue is back down to the low watermark.
+	 * @param highWatermark the number of queued bytes at which the policy kicks in
+	 * @param lowWatermark the number of queued bytes at which the policy stops
+	 * @throws IllegalArgumentException if the low watermark is above the high watermark
+	 */
+	public void setWatermarks(long highWatermark, long lowWatermark) {
+		if (lowWatermark > highWatermark) {
+			throw new IllegalArgumentException("The low watermark can't be above the high watermark.");
+		}
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+	}
+	
+	/**
+	 * Choose what to do with clients that aren't reading their data fast enough.
+	 * The default is to drop their oldest messages.
+	 * @param policy the policy to apply when a client goes over the high watermark
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+		this.slowConsumerPolicy = policy;
+	}
+	
+	/**
+	 * Choose when rooms that nobody is using are removed. The default is to keep every room,
+	 * which is only suitable for servers that don't run for long.
+	 * A room that no client has joined yet is always kept for the idle timeout, so that
+	 * there is time to join it after creating it.
+	 * @param lifetime when to remove rooms
+	 * @param idleTimeout how many ms a room has to be empty for before it is removed
+	 */
+	public synchronized void setRoomLifetime(RoomLifetime lifetime, long idleTimeout) {
+		if (idleTimeout < 0) {
+			throw new IllegalArgumentException("The idle timeout can't be negative.");
+		}
+		this.roomLifetime = lifetime;
+		this.roomIdleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+			sweeper = null;
+		}
+		if (lifetime == RoomLifetime.PINNED) {
+			for (Shard shard : shards) {
+				shard.post(() -> shard.idleRooms.clear());
+			}
+			return;
+		}
+		for (Shard shard : shards) {
+			// Rooms that are already empty start their timeout now
+			shard.post(() -> {
+				for (int i = 0; i < shard.rooms.slots(); i++) {
+					Room room = shard.rooms.valueAt(i);
+					if (room != null && room.size() == 0) {
+						idle(shard, room);
+					}
+				}
+			});
+		}
+		// Check a few times per timeout, but not too often
+		long period = Math.max(10, Math.min(idleTimeout / 4, 1000));
+		sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task);
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleAtFixedRate(() -> {
+			for (Shard shard : shards) {
+				shard.post(() -> removeIdleRooms(shard));
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Choose when rooms that nobody is using are removed, keeping empty rooms for a minute.
+	 * @param lifetime when to remove rooms
+	 */
+	public void setRoomLifetime(RoomLifetime lifetime) {
+		setRoomLifetime(lifetime, 60 * 1000);
+	}
+	
+	/**
+	 * Start relaying unreliable messages between clients over UDP, on the same port number as
+	 * the server. Only clients that connect after this can send and receive them, so call it
+	 * in setup(). Calling it again has no effect.
+	 * @throws RuntimeException if the UDP port can't be opened
+	 */
+	public synchronized void enableUnreliable() {
+		if (relay != null) {
+			return;
+		}
+		try {
+			relay = new DatagramRelay(this, port);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to open UDP port " + port, e);
+		}
+		new Thread(relay).start();
 	}
 	
 	/**
-	 * Return the client's data as a JSONObject.
-	 * @param client the client with available data as a JSON string
-	 * @return JSONObject an object containing the client's data
+	 * Have every room that is created from now on send the state of its clients this many times
+	 * per second, instead of only once a client asks it to. Clients send their state with 
+	 * updateState, and the server sends each room's state to everyone in it once per tick, so 
+	 * the traffic in a room grows with its size rather than the square of its size.
+	 * @param ticksPerSecond the number of ticks per second, or 0 for rooms not to tick
+	 * @throws IllegalArgumentException if the tick rate is negative or above 240
 	 */
-	private JSONObject getData(Client client) {
-		String dataStr = client.readStringUntil(SEP);
-		if (dataStr == null) {
+	public void setTickRate(int ticksPerSecond) {
+		if (ticksPerSecond < 0 || ticksPerSecond > MAX_TICK_RATE) {
+			throw new IllegalArgumentException("The tick rate must be between 0 and " + MAX_TICK_RATE + ".");
+		}
+		defaultTickRate = ticksPerSecond;
+	}
+	
+	/**
+	 * Get the number of datagrams that were dropped because they were malformed or didn't carry
+	 * their sender's token.
+	 */
+	public long getRejectedDatagrams() {
+		DatagramRelay relay = this.relay;
+		return relay != null ? relay.datagramsRejected : 0;
+	}
+	
+	/**
+	 * Get the total number of messages that have been dropped because their recipients were
+	 * too slow to read them.
+	 */
+	public long getDroppedFrames() {
+		long total = 0;
+		for (Shard shard : shards) {
+			total += shard.framesDropped;
+		}
+		return total;
+	}
+	
+	/**
+	 * Get the total number of bytes that have been queued to be sent to clients but not written yet.
+	 */
+	public long getQueuedBytes() {
+		long total = 0;
+		for (Shard shard : shards) {
+			total += shard.queuedBytes;
+		}
+		return total;
+	}
+	
+	/**
+	 * Get the total number of bytes that have been written to clients.
+	 */
+	public long getBytesWritten() {
+		long total = 0;
+		for (Shard shard : shards) {
+			total += shard.bytesWritten;
+		}
+		return total;
+	}
+	
+	/**
+	 * Get the number of times that a connection's queued frames have been flushed.
+	 * Many frames can be written by a single flush.
+	 */
+	public long getFlushCount() {
+		long total = 0;
+		for (Shard shard : shards) {
+			total += shard.flushes;
+		}
+		return total;
+	}
+	
+	/**
+	 * Return a frame of the client's data as a JSONObject.
+	 * The "message" of a message request is never read by the server, so it is left encoded.
+	 * @param connection the client's connection, which determines how the frame is decoded
+	 * @param buf the array containing the frame
+	 * @param offset the index of the first byte of the frame
+	 * @param length the number of bytes in the frame
+	 * @param message an array of length one, whose element is set to the encoded message, if any
+	 * @return JSONObject an object containing the client's data, or null if it is invalid
+	 */
+	JSONObject getData(Connection connection, byte[] buf, int offset, int length, RawValue[] message) {
+		try {
+			return connection.codec.decode(buf, offset, length, "message", message);
+		} catch (RuntimeException e) {
+			// Invalid data
 			return null;
 		}
-		return JSONObject.parse(dataStr);
 	}
 	
 	/**
 	 * Take action based on the content of the received data.
-	 * @param client the client that sent the data
-	 * @param data the received data 
+	 * Requests that involve rooms or clients of another shard are handed to that shard,
+	 * which sends the response when it is done.
+	 * @param connection the connection of the client that sent the data
+	 * @param data the received data
+	 * @param message the encoded "message" of the received data, or null if it has none
 	 */
-	private void handleData(Client client, JSONObject data) {
+	private void handleData(Connection connection, JSONObject data, RawValue message) {
 		if (data.hasKey("action")) {
+			Shard shard = connection.shard;
+			Request request = new Request(connection, data.hasKey("requestId") ? data.getInt("requestId") : -1);
 			JSONObject response;
 			ActionCode action;
 			try {
@@ -142,305 +611,899 @@ public class GameServer {
 				return;
 			}
 			switch (action) {
+			case REGISTER_CLIENT:
+				negotiate(connection, data);
+				return; // The response has already been sent
 			case DISCONNECT:
-				disconnect(data.getInt("clientId"));
+				int clientId = data.getInt("clientId");
+				onShard(shard, clientId, () -> disconnect(shardOf(clientId), clientId));
 				return; // Client is disconnecting, so no response
 			case REGISTER_ROOM:
-				response = registerRoom(data.getInt("capacity"));
+				response = registerRoom(shard, data.getInt("capacity"));
 				break;
 			case JOIN_ROOM:
-				response = joinRoom(data.getInt("clientId"), data.getInt("roomId"));
-				break;
+				joinRoom(shard, request, data.getInt("clientId"), data.getInt("roomId"));
+				return;
 			case LEAVE_ROOM:
-				response = leaveRoom(data.getInt("clientId"));
-				break;
+				leaveRoom(shard, request, data.getInt("clientId"));
+				return;
 			case AUTOJOIN_ROOM:
-				response = autojoinRoom(data.getInt("clientId"), data.getInt("capacity"));
-				break;
+				autojoinRoom(shard, request, data.getInt("clientId"), data.getInt("capacity"));
+				return;
 			case GET_ROOM_INFO:
-				response = getRoomInfo(data.getInt("roomId"));
-				break;
+				getRoomInfo(shard, request, data.getInt("roomId"));
+				return;
 			case GET_ROOMS_INFO:
-				response = getRoomsInfo();
-				break;
+				getRoomsInfo(shard, request);
+				return;
+			case QUERY_ROOMS:
+				queryRooms(shard, request, RoomQuery.parse(data));
+				return;
+			case SUBSCRIBE_ROOM:
+				subscribeRoom(shard, request, data.getInt("clientId"), data.getInt("roomId"));
+				return;
+			case UNSUBSCRIBE_ROOM:
+				unsubscribeRoom(shard, request, data.getInt("clientId"), data.getInt("roomId"));
+				return;
 			case SET_ROOM_ATTRIBUTES:
-				response = setRoomAttributes(data.getInt("roomId"), data.getJSONObject("attributes"));
-				break;
+				setRoomAttributes(shard, request, data.getInt("roomId"), data.getJSONObject("attributes"));
+				return;
 			case PUT_ROOM_ATTRIBUTE:
-				response = putRoomAttribute(data.getInt("roomId"), data.getString("key"), data.get("value"));
-				break;
+				putRoomAttribute(shard, request, data.getInt("roomId"), data.getString("key"), data.get("value"));
+				return;
 			case SET_SERVER_ATTRIBUTES:
-				response = setServerAttributes(data.getJSONObject("attributes"));
-				break;
+				JSONObject attributes = data.getJSONObject("attributes");
+				onShard(shard, 0, () -> reply(shards[0], request, setServerAttributes(attributes)));
+				return;
 			case PUT_SERVER_ATTRIBUTE:
-				response = putServerAttribute(data.getString("key"), data.get("value"));
-				break;
+				String key = data.getString("key");
+				Object value = data.get("value");
+				onShard(shard, 0, () -> reply(shards[0], request, putServerAttribute(key, value)));
+				return;
 			case GET_SERVER_ATTRIBUTES:
-				response = getServerAttributes();
-				break;
+				onShard(shard, 0, () -> reply(shards[0], request, getServerAttributes()));
+				return;
 			case SEND_MESSAGE:
-				sendMessage(data.getInt("clientId"), data.getJSONArray("recipients"), data.getJSONObject("message"));
+				sendMessage(shard, data.getInt("clientId"), data.getJSONArray("recipients"), message);
 				return; // No response when sending message
 			case BROADCAST_MESSAGE:
-				broadcastMessage(data.getInt("clientId"), data.getJSONObject("message"));
+				broadcastMessage(shard, data.getInt("clientId"), message);
 				return; // No response when sending message
+			case UPDATE_STATE:
+				updateState(shard, data.getInt("clientId"), data.getJSONObject("state"));
+				return; // The state is sent with the room's next tick instead
+			case SET_TICK_RATE:
+				setTickRate(shard, request, data.getInt("roomId"), data.getInt("tickRate"));
+				return;
 			default:
 				//throw new RuntimeException("Invalid action: " + data.getString("action"));
 				return;
 			}
 			
-			send(client, response);
+			reply(shard, request, response);
 		}
 		//throw new RuntimeException("Data sent to server must have an 'action' attribute.");
 	}
 	
+	/** Helper method to get the shard that a client or room id belongs to. **/
+	private Shard shardOf(int id) {
+		return shards[Math.floorMod(id, shards.length)];
+	}
+	
+	/**
+	 * Helper method to run a task on the shard that a client or room id belongs to.
+	 * The task runs right away if that's the current shard, and is posted to it otherwise.
+	 */
+	private void onShard(Shard shard, int id, Runnable task) {
+		Shard owner = shardOf(id);
+		if (owner == shard) {
+			task.run();
+		} else {
+			owner.post(task);
+		}
+	}
+	
 	/**
 	 * Remove the client from our data structures, including rooms.
+	 * @param shard the shard that the client belongs to
 	 * @param clientId the id of the client to disconnect
 	 */
-	private void disconnect(int clientId) {
-		Client client = clients.remove(clientId);
-		if (client != null) {
-			client.stop();
-			disconnected.add(client.hashCode());
+	private void disconnect(Shard shard, int clientId) {
+		Connection connection = shard.clients.remove(clientId);
+		if (connection != null) {
+			connection.close();
+			// Anything still queued will never be sent
+			shard.queuedBytes -= connection.outbound.queuedBytes();
+			if (connection instanceof ProcessingConnection) {
+				processingConnections.remove(((ProcessingConnection) connection).client);
+			}
+			DatagramRelay relay = this.relay;
+			if (relay != null) {
+				relay.unregister(clientId);
+			}
+		}
+		if (connection != null && connection.roomId >= 0) {
+			int roomId = connection.roomId;
+			onShard(shard, roomId, () -> removeFromRoom(shardOf(roomId), roomId, clientId));
 		}
-		Integer roomId = clientIdToRoomId.remove(clientId);
-		if (roomId != null) {
-			rooms.get(roomId).removeClient(clientId);
+		if (connection != null) {
+			for (int i = 0; i < connection.subscriptions.size(); i++) {
+				int roomId = connection.subscriptions.get(i);
+				onShard(shard, roomId, () -> unsubscribe(shardOf(roomId), clientId, roomId));
+			}
 		}
 	}
 	
 	/**
 	 * Register a client (assign it an ID).
-	 * @param client the client to register
+	 * @param shard the shard that the client's connection belongs to
+	 * @param connection the connection of the client to register
 	 * @return the response to send to the client, containing "clientId" key
 	 */
-	private JSONObject registerClient(Client client) {
+	private JSONObject registerClient(Shard shard, Connection connection) {
 		JSONObject response = new JSONObject();
 		setAction(response, ActionCode.REGISTER_CLIENT);
 		setSuccess(response);
-		Integer id = nextClientId++;
+		int id = shard.nextClientId();
 		response.setInt("clientId", id);
-		clients.put(id, client);
+		connection.clientId = id;
+		shard.clients.put(id, connection);
+		
+		// Let the client know which framings and codecs it can switch to
+		JSONArray framings = new JSONArray();
+		for (Framing framing : Framing.values()) {
+			framings.append(framing.name());
+		}
+		response.setJSONArray("framings", framings);
+		JSONArray codecs = new JSONArray();
+		for (Codec codec : Codec.values()) {
+			codecs.append(codec.name());
+		}
+		response.setJSONArray("codecs", codecs);
+		// Responses echo the ids of the requests they answer
+		response.setBoolean("requestIds", true);
+		// Let the client know where to send unreliable messages, and how to prove who it is
+		DatagramRelay relay = this.relay;
+		if (relay != null) {
+			response.setInt("udpPort", port);
+			response.setInt("udpToken", relay.register(id));
+		}
 		return response;
 	}
 	
 	/**
-	 * Register a new room and add it to the list of rooms.
+	 * Switch a client to a different framing and/or codec. The response is sent the old way,
+	 * and every frame after it is sent the new way, in both directions.
+	 * @param connection the connection of the client
+	 * @param data the request, with optional "framing" and "codec" keys naming what to switch to
+	 */
+	private void negotiate(Connection connection, JSONObject data) {
+		Framing framing = connection.framing;
+		Codec codec = connection.codec;
+		try {
+			if (data.hasKey("framing")) {
+				framing = Framing.valueOf(data.getString("framing"));
+			}
+			if (data.hasKey("codec")) {
+				codec = Codec.forName(data.getString("codec"));
+			}
+		} catch (IllegalArgumentException e) {
+			// Unsupported, so keep what we had
+		}
+		if (codec == Codec.BINARY && framing != Framing.LENGTH_PREFIXED) {
+			// Binary data may contain the separator
+			codec = connection.codec;
+		}
+		
+		JSONObject response = new JSONObject();
+		setAction(response, ActionCode.REGISTER_CLIENT);
+		setSuccess(response);
+		response.setInt("clientId", connection.clientId);
+		response.setString("framing", framing.name());
+		response.setString("codec", codec.name());
+		send(connection, response);
+		
+		connection.framing = framing;
+		connection.codec = codec;
+		connection.decoder.setFraming(framing);
+	}
+	
+	/**
+	 * Register a new room on the current shard and add it to the list of rooms.
+	 * @param shard the shard to add the room to
 	 * @param capacity the capacity of the room
 	 * @return the response to send to the client, containing "roomId" key
 	 */
-	private JSONObject registerRoom(int capacity) {
+	private JSONObject registerRoom(Shard shard, int capacity) {
 		JSONObject response = new JSONObject();
 		setAction(response, ActionCode.REGISTER_ROOM);
 		setSuccess(response);
-		int id = nextRoomId++;
-		response.setInt("roomId", id);
-		
-		Room room = new Room(id, capacity);
-		rooms.put(id, room);
+		Room room = newRoom(shard, capacity);
+		response.setInt("roomId", room.id());
 		return response;
 	}
 	
+	/** Helper method to create a room on a shard, reusing a removed one if there is one. **/
+	private Room newRoom(Shard shard, int capacity) {
+		int id = shard.nextRoomId();
+		Room room = shard.roomPool.poll();
+		if (room == null) {
+			room = new Room(id, capacity, shard);
+		} else {
+			room.open(id, capacity);
+		}
+		shard.rooms.put(id, room);
+		if (roomLifetime != RoomLifetime.PINNED) {
+			idle(shard, room);
+		}
+		if (defaultTickRate > 0) {
+			startTicking(shard, room, defaultTickRate);
+		}
+		return room;
+	}
+	
 	/**
-	 * Add a client to a room.
+	 * Helper method to remove a client from a room, from the room's shard, and deal with the
+	 * room according to its lifetime if that leaves it empty.
+	 */
+	private void removeFromRoom(Shard shard, int roomId, int clientId) {
+		Room room = shard.rooms.get(roomId);
+		room.removeClient(clientId);
+		if (room.size() == 0) {
+			switch (roomLifetime) {
+			case REMOVE_WHEN_EMPTY:
+				removeRoom(shard, room);
+				break;
+			case IDLE_TIMEOUT:
+				idle(shard, room);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Helper method to start the idle timeout of a room that is empty.
+	 */
+	private void idle(Shard shard, Room room) {
+		room.emptySince = System.nanoTime();
+		shard.idleRooms.add(new Shard.IdleRoom(room.id(), room.emptySince));
+	}
+	
+	/**
+	 * Remove the rooms of a shard that have been empty for the idle timeout. Rooms are checked
+	 * in the order they became empty, so this stops at the first one that hasn't timed out.
+	 * @param shard the shard to remove the rooms from
+	 */
+	private void removeIdleRooms(Shard shard) {
+		long now = System.nanoTime();
+		Shard.IdleRoom idle;
+		while ((idle = shard.idleRooms.peek()) != null && now - idle.since >= roomIdleTimeout) {
+			shard.idleRooms.poll();
+			Room room = shard.rooms.get(idle.roomId);
+			// Skip rooms that have been removed, or that have had clients since
+			if (room != null && room.size() == 0 && room.emptySince == idle.since) {
+				removeRoom(shard, room);
+			}
+		}
+	}
+	
+	/**
+	 * Helper method to remove an empty room. Its subscribers are sent one last update saying
+	 * that it's closed, and their shards forget about the subscription. The room is kept to be reused.
+	 */
+	private void removeRoom(Shard shard, Room room) {
+		int roomId = room.id();
+		if (room.subscribers.size() > 0) {
+			JSONObject update = room.takeUpdate();
+			if (update == null) {
+				update = new JSONObject();
+				update.setInt("roomId", roomId);
+				update.setInt("size", 0);
+			}
+			update.setBoolean("closed", true);
+			setAction(update, ActionCode.ROOM_UPDATE);
+			setSuccess(update);
+			int[] subscriberIds = room.subscribers.toArray();
+			sendTo(shard, subscriberIds, new OutboundFrame(update));
+			for (int subscriberId : subscriberIds) {
+				recordSubscription(shard, subscriberId, roomId, false);
+			}
+		}
+		shard.roomAttributes.removeAll(roomId, room.getAttributes());
+		shard.rooms.remove(roomId);
+		room.close();
+		if (shard.roomPool.size() < MAX_POOLED_ROOMS) {
+			shard.roomPool.add(room);
+		}
+	}
+	
+	/**
+	 * Add a client to a room. The client's shard checks that it isn't in a room already, or
+	 * joining one, then the room's shard adds it to the room and responds.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
 	 * @param clientId the id of the client to add to the room
 	 * @param roomId the id of the room to add the client to
-	 * @return the response to send to the client, containing info about the room joined
 	 */
-	private JSONObject joinRoom(int clientId, int roomId) {
-		JSONObject response = new JSONObject();
-		setAction(response, ActionCode.JOIN_ROOM);
-		
-		if (clientIdToRoomId.containsKey(clientId)) {
-			setError(response, ErrorCode.ALREADY_IN_ROOM);
-		} else {
-			Room room = rooms.get(roomId);
-			if (room == null) {
-				setError(response, ErrorCode.ROOM_NOT_FOUND);
-			} else if (room.isFull()) {
-				setError(response, ErrorCode.ROOM_FULL);
-			} else {
-				setSuccess(response);
-				addClientToRoom(clientId, room);
-				addRoomInfo(response, room);
+	private void joinRoom(Shard shard, Request request, int clientId, int roomId) {
+		onShard(shard, clientId, () -> {
+			Shard home = shardOf(clientId);
+			if (!startJoining(home, request, ActionCode.JOIN_ROOM, clientId)) {
+				return;
 			}
+			onShard(home, roomId, () -> {
+				Shard owner = shardOf(roomId);
+				JSONObject response = new JSONObject();
+				setAction(response, ActionCode.JOIN_ROOM);
+				
+				Room room = owner.rooms.get(roomId);
+				if (room == null) {
+					setError(response, ErrorCode.ROOM_NOT_FOUND);
+					finishJoining(owner, clientId, -1);
+				} else if (room.isFull()) {
+					setError(response, ErrorCode.ROOM_FULL);
+					finishJoining(owner, clientId, -1);
+				} else {
+					setSuccess(response);
+					addClientToRoom(owner, clientId, room);
+					addRoomInfo(response, room);
+				}
+				reply(owner, request, response);
+			});
+		});
+	}
+	
+	/**
+	 * Helper method to mark a client as joining a room, from the client's shard, so that no other
+	 * request can join or leave a room until the room's shard has answered. If the client is
+	 * already in a room or joining one, the request is answered with an error instead.
+	 * @return false if the request has been answered
+	 */
+	private boolean startJoining(Shard shard, Request request, ActionCode action, int clientId) {
+		Connection client = shard.clients.get(clientId);
+		if (client == null) {
+			// Disconnected, so nobody is waiting for an answer
+			return false;
 		}
-		
-		return response;
+		if (client.roomId != -1) {
+			JSONObject response = new JSONObject();
+			setAction(response, action);
+			setError(response, ErrorCode.ALREADY_IN_ROOM);
+			reply(shard, request, response);
+			return false;
+		}
+		client.roomId = Connection.JOINING;
+		return true;
 	}
 	
-	/** Helper method to add client to room. **/
-	private void addClientToRoom(int clientId, Room room) {
+	/**
+	 * Helper method to tell the client's shard how a join turned out, from the room's shard,
+	 * before the client can hear back about it. Any requests to leave that arrived meanwhile
+	 * are handled then.
+	 * @param roomId the room the client joined, or -1 if it didn't join one
+	 */
+	private void finishJoining(Shard shard, int clientId, int roomId) {
+		onShard(shard, clientId, () -> {
+			Shard home = shardOf(clientId);
+			Connection client = home.clients.get(clientId);
+			if (client != null) {
+				client.roomId = roomId;
+				Runnable leave;
+				while ((leave = client.afterJoin.poll()) != null) {
+					leave.run();
+				}
+			} else if (roomId >= 0) {
+				// The client disconnected in the meantime
+				onShard(home, roomId, () -> removeFromRoom(shardOf(roomId), roomId, clientId));
+			}
+		});
+	}
+	
+	/**
+	 * Helper method to add client to room, from the room's shard.
+	 */
+	private void addClientToRoom(Shard shard, int clientId, Room room) {
 		room.addClient(clientId);
-		clientIdToRoomId.put(clientId, room.id());
+		finishJoining(shard, clientId, room.id());
 	}
 	
 	/**
 	 * Remove a client from its room.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
 	 * @param clientId the id of the client to remove from its room
-	 * @return the response to send to the client
 	 */
-	private JSONObject leaveRoom(int clientId) {
-		JSONObject response = new JSONObject();
-		setAction(response, ActionCode.LEAVE_ROOM);
-		setSuccess(response);
-		
-		Integer roomId = clientIdToRoomId.get(clientId);
-		if (roomId != null) {
-			Room room = rooms.get(roomId);
-			room.removeClient(clientId);
-		}
-		return response;
+	private void leaveRoom(Shard shard, Request request, int clientId) {
+		onShard(shard, clientId, () -> {
+			Shard home = shardOf(clientId);
+			JSONObject response = new JSONObject();
+			setAction(response, ActionCode.LEAVE_ROOM);
+			setSuccess(response);
+			
+			Connection client = home.clients.get(clientId);
+			if (client != null && client.roomId == Connection.JOINING) {
+				// Leave whichever room the client is joining, once it has joined it
+				client.afterJoin.add(() -> leaveRoom(home, request, clientId));
+				return;
+			}
+			if (client != null && client.roomId >= 0) {
+				int roomId = client.roomId;
+				client.roomId = -1;
+				onShard(home, roomId, () -> removeFromRoom(shardOf(roomId), roomId, clientId));
+			}
+			reply(home, request, response);
+		});
 	}
 	
-
+	
 	/**
-	 * Join an arbitrary room, or create a new room if all rooms are full.
+	 * Join the fullest room with the given capacity that isn't full yet, or create a new room
+	 * if there isn't one. The shards are searched one after another, starting with the client's own.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
 	 * @param clientId the id of the client to join a room
 	 * @param capacity the capacity of a new room, if one is created
-	 * @return the response to send to the client, containing info about the room joined
 	 */
-	private JSONObject autojoinRoom(int clientId, int capacity) {
+	private void autojoinRoom(Shard shard, Request request, int clientId, int capacity) {
+		onShard(shard, clientId, () -> {
+			Shard home = shardOf(clientId);
+			if (startJoining(home, request, ActionCode.AUTOJOIN_ROOM, clientId)) {
+				autojoinRoom(home, request, clientId, capacity, 1);
+			}
+		});
+	}
+	
+	/**
+	 * Helper method to look for a room to autojoin on one shard, and pass the search on to the
+	 * next shard if it has none. The last shard searched makes a new room.
+	 * @param visited the number of shards searched so far, including this one
+	 */
+	private void autojoinRoom(Shard shard, Request request, int clientId, int capacity, int visited) {
 		JSONObject response = new JSONObject();
 		setAction(response, ActionCode.AUTOJOIN_ROOM);
 		setSuccess(response);
 		
-		// Add to first room that isn't full
-		for (Room room : rooms.values()) {
-			if (!room.isFull()) {
-				addClientToRoom(clientId, room);
-				addRoomInfo(response, room);
-				return response;
-			}
+		Room open = shard.openRooms.fullest(capacity);
+		if (open != null) {
+			addClientToRoom(shard, clientId, open);
+			addRoomInfo(response, open);
+			reply(shard, request, response);
+			return;
+		}
+		
+		if (visited < shards.length) {
+			Shard next = shards[(shard.index + 1) % shards.length];
+			next.post(() -> autojoinRoom(next, request, clientId, capacity, visited + 1));
+			return;
 		}
 		
 		// If all rooms full, then make a new one
-		int roomId = nextRoomId++;
-		Room room = new Room(roomId, capacity);
-		rooms.put(roomId, room);
-		addClientToRoom(clientId, room);
+		Room room = newRoom(shard, capacity);
+		addClientToRoom(shard, clientId, room);
 		addRoomInfo(response, room);
-		return response;
-		
+		reply(shard, request, response);
 	}
 	
 	/**
 	 * Get info about a room.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
 	 * @param roomId the id of the room to get info about
-	 * @return the response to send to the client
 	 */
-	private JSONObject getRoomInfo(int roomId) {
-		JSONObject response = new JSONObject();
-		setAction(response, ActionCode.GET_ROOM_INFO);
+	private void getRoomInfo(Shard shard, Request request, int roomId) {
+		onShard(shard, roomId, () -> {
+			Shard owner = shardOf(roomId);
+			Room room = owner.rooms.get(roomId);
+			if (room == null) {
+				JSONObject response = new JSONObject();
+				setAction(response, ActionCode.GET_ROOM_INFO);
+				setError(response, ErrorCode.ROOM_NOT_FOUND);
+				reply(owner, request, response);
+				return;
+			}
+			// The response is encoded once, and sent as-is until the room changes
+			if (room.infoResponse == null) {
+				JSONObject response = new JSONObject();
+				setAction(response, ActionCode.GET_ROOM_INFO);
+				setSuccess(response);
+				addRoomInfo(response, room);
+				room.infoResponse = new OutboundFrame(response);
+			}
+			reply(owner, request, room.infoResponse);
+		});
+	}
+	
+	/**
+	 * Get info about all active rooms. The info is collected from each shard in turn,
+	 * starting with the current one, and the last shard responds. Each shard keeps a snapshot
+	 * of its rooms' info until one of them changes, and the last shard resends its previous 
+	 * response if none of the snapshots has changed since.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
+	 */
+	private void getRoomsInfo(Shard shard, Request request) {
+		getRoomsInfo(shard, request, new JSONArray[shards.length], new int[shards.length], 1);
+	}
+	
+	/**
+	 * Helper method to add one shard's snapshot, then pass the rest on to the next shard.
+	 * @param snapshots the snapshots collected so far, by shard index
+	 * @param versions the version of each shard's rooms that its snapshot was taken at
+	 * @param visited the number of shards collected from so far, including this one
+	 */
+	private void getRoomsInfo(Shard shard, Request request, JSONArray[] snapshots, int[] versions, 
+			int visited) {
+		if (shard.roomsInfoVersion != shard.roomsVersion) {
+			// Build a new array rather than changing the old one, which other shards may be reading
+			JSONArray roomsInfo = new JSONArray();
+			for (int i = 0; i < shard.rooms.slots(); i++) {
+				Room room = shard.rooms.valueAt(i);
+				if (room != null) {
+					roomsInfo.append(room.info());
+				}
+			}
+			shard.roomsInfo = roomsInfo;
+			shard.roomsInfoVersion = shard.roomsVersion;
+		}
+		snapshots[shard.index] = shard.roomsInfo;
+		versions[shard.index] = shard.roomsVersion;
 		
-		Room room = rooms.get(roomId);
-		if (room != null) {
+		if (visited < shards.length) {
+			Shard next = shards[(shard.index + 1) % shards.length];
+			next.post(() -> getRoomsInfo(next, request, snapshots, versions, visited + 1));
+			return;
+		}
+		
+		if (!Arrays.equals(versions, shard.roomsInfoVersions)) {
+			JSONArray roomsInfo = snapshots[0];
+			if (snapshots.length > 1) {
+				roomsInfo = new JSONArray();
+				for (JSONArray snapshot : snapshots) {
+					for (int i = 0; i < snapshot.size(); i++) {
+						roomsInfo.append(snapshot.getJSONObject(i));
+					}
+				}
+			}
+			JSONObject response = new JSONObject();
+			setAction(response, ActionCode.GET_ROOMS_INFO);
 			setSuccess(response);
-			addRoomInfo(response, room);
-		} else {
-			setError(response, ErrorCode.ROOM_NOT_FOUND);
+			response.setJSONArray("roomsInfo", roomsInfo);
+			shard.roomsInfoResponse = new OutboundFrame(response);
+			shard.roomsInfoVersions = versions;
 		}
-		return response;
+		reply(shard, request, shard.roomsInfoResponse);
 	}
 	
 	/**
-	 * Get info about all active rooms.
-	 * @return the response to send to the client
+	 * Get info about the rooms that match a query. The matches are collected from each shard in
+	 * turn, starting with the current one, and the shard that finds the last of them responds.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
+	 * @param query the conditions that the rooms must meet
 	 */
-	private JSONObject getRoomsInfo() {
-		JSONObject response = new JSONObject();
-		setAction(response, ActionCode.GET_ROOMS_INFO);
-		setSuccess(response);
+	private void queryRooms(Shard shard, Request request, RoomQuery query) {
+		queryRooms(shard, request, query, new ArrayList<>(), 1);
+	}
+	
+	/**
+	 * Helper method to add one shard's matches to those found so far, then pass the query on to
+	 * the next shard unless there are enough of them already.
+	 * If the query is sorted, each shard finds its own first matches in order, and only the first
+	 * of all the matches so far are kept.
+	 * @param matches the info of the rooms that have matched so far
+	 * @param visited the number of shards searched so far, including this one
+	 */
+	private void queryRooms(Shard shard, Request request, RoomQuery query, 
+			ArrayList<JSONObject> matches, int visited) {
+		boolean sorted = query.sortKey != null;
+		ArrayList<Room> found = findRooms(shard, query, sorted ? query.limit : query.limit - matches.size());
+		for (Room room : found) {
+			matches.add(room.info());
+		}
+		if (sorted && visited > 1) {
+			matches.sort((info, other) -> query.compare(info.getJSONObject("attributes"), other.getJSONObject("attributes")));
+			matches.subList(Math.min(query.limit, matches.size()), matches.size()).clear();
+		}
 		
-		JSONArray roomsInfo = new JSONArray();
+		if (visited < shards.length && (sorted || matches.size() < query.limit)) {
+			Shard next = shards[(shard.index + 1) % shards.length];
+			next.post(() -> queryRooms(next, request, query, matches, visited + 1));
+			return;
+		}
 		
-		for (Room room : rooms.values()) {
-			JSONObject roomInfo = new JSONObject();
-			addRoomInfo(roomInfo, room);
+		JSONArray roomsInfo = new JSONArray();
+		for (JSONObject roomInfo : matches) {
 			roomsInfo.append(roomInfo);
 		}
-		
+		JSONObject response = new JSONObject();
+		setAction(response, ActionCode.QUERY_ROOMS);
+		setSuccess(response);
 		response.setJSONArray("roomsInfo", roomsInfo);
-		return response;
+		reply(shard, request, response);
+	}
+	
+	/**
+	 * Helper method to find the rooms on a shard that match a query. Only the rooms that meet the
+	 * query's most selective condition are looked at, or every room if it has no conditions.
+	 * If the query is sorted, only the first max matches in order are kept while looking, rather
+	 * than sorting all of them, and they are returned in order.
+	 * @param max the most rooms to find
+	 */
+	private ArrayList<Room> findRooms(Shard shard, RoomQuery query, int max) {
+		ArrayList<Room> found = new ArrayList<>();
+		if (max <= 0) {
+			return found;
+		}
+		// For a sorted query, the first matches in order so far, with the last of them at the head
+		PriorityQueue<Room> first = query.sortKey == null ? null
+				: new PriorityQueue<>(max, (room, other) -> query.compare(other.getAttributes(), room.getAttributes()));
+		Collection<IntSet> candidates = null;
+		int fewest = Integer.MAX_VALUE;
+		for (RoomQuery.Condition condition : query.conditions) {
+			Collection<IntSet> sets;
+			if (condition.value != null) {
+				IntSet set = shard.roomAttributes.equal(condition.key, condition.value);
+				sets = set == null ? Collections.<IntSet>emptyList() : Collections.singletonList(set);
+			} else {
+				sets = shard.roomAttributes.between(condition.key, condition.min, condition.max).values();
+			}
+			int count = 0;
+			for (IntSet set : sets) {
+				count += set.size();
+				if (count >= fewest) {
+					break;
+				}
+			}
+			if (count < fewest) {
+				fewest = count;
+				candidates = sets;
+			}
+		}
+		
+		if (candidates == null) {
+			for (int i = 0; i < shard.rooms.slots(); i++) {
+				Room room = shard.rooms.valueAt(i);
+				if (room != null && query.matches(room) && keep(room, found, first, max)) {
+					return found;
+				}
+			}
+		} else {
+			for (IntSet set : candidates) {
+				for (int i = 0; i < set.size(); i++) {
+					Room room = shard.rooms.get(set.get(i));
+					if (query.matches(room) && keep(room, found, first, max)) {
+						return found;
+					}
+				}
+			}
+		}
+		if (first != null) {
+			found.addAll(first);
+			found.sort((room, other) -> query.compare(room.getAttributes(), other.getAttributes()));
+		}
+		return found;
 	}
 	
-	/** Helper method to add room info to a response. **/
+	/**
+	 * Helper method to keep a room that matches a query. Matches of an unsorted query are added
+	 * to found, while those of a sorted query go into the heap, which is cut back to the first
+	 * max of them in order.
+	 * @return true if enough rooms have been found to stop looking
+	 */
+	private static boolean keep(Room room, ArrayList<Room> found, PriorityQueue<Room> first, int max) {
+		if (first == null) {
+			found.add(room);
+			return found.size() == max;
+		}
+		first.add(room);
+		if (first.size() > max) {
+			first.poll();
+		}
+		return false;
+	}
+	
+	/**
+	 * Subscribe a client to a room, so that it is sent the room's changes at the end of each
+	 * iteration of the room's thread in which it changed. The response contains the room's info,
+	 * which the changes are relative to.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
+	 * @param clientId the id of the client to subscribe
+	 * @param roomId the id of the room to subscribe to
+	 */
+	private void subscribeRoom(Shard shard, Request request, int clientId, int roomId) {
+		onShard(shard, clientId, () -> {
+			Shard home = shardOf(clientId);
+			onShard(home, roomId, () -> {
+				Shard owner = shardOf(roomId);
+				JSONObject response = new JSONObject();
+				setAction(response, ActionCode.SUBSCRIBE_ROOM);
+				
+				Room room = owner.rooms.get(roomId);
+				if (room != null) {
+					room.subscribers.add(clientId);
+					recordSubscription(owner, clientId, roomId, true);
+					setSuccess(response);
+					addRoomInfo(response, room);
+				} else {
+					setError(response, ErrorCode.ROOM_NOT_FOUND);
+				}
+				reply(owner, request, response);
+			});
+		});
+	}
+	
+	/**
+	 * Unsubscribe a client from a room. Changes already sent may still arrive afterwards.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
+	 * @param clientId the id of the client to unsubscribe
+	 * @param roomId the id of the room to unsubscribe from
+	 */
+	private void unsubscribeRoom(Shard shard, Request request, int clientId, int roomId) {
+		onShard(shard, clientId, () -> {
+			Shard home = shardOf(clientId);
+			onShard(home, roomId, () -> {
+				Shard owner = shardOf(roomId);
+				unsubscribe(owner, clientId, roomId);
+				recordSubscription(owner, clientId, roomId, false);
+				JSONObject response = new JSONObject();
+				setAction(response, ActionCode.UNSUBSCRIBE_ROOM);
+				setSuccess(response);
+				reply(owner, request, response);
+			});
+		});
+	}
+	
+	/**
+	 * Helper method to tell a client's shard that the client has subscribed to a room or
+	 * stopped being subscribed, from the room's shard, before the client can hear back about it.
+	 * The client's shard remembers its subscriptions so that they can be cleaned up when it
+	 * disconnects. If it has already disconnected, a new subscription is removed again.
+	 */
+	private void recordSubscription(Shard shard, int clientId, int roomId, boolean subscribed) {
+		onShard(shard, clientId, () -> {
+			Connection client = shardOf(clientId).clients.get(clientId);
+			if (client == null) {
+				if (subscribed) {
+					onShard(shardOf(clientId), roomId, () -> unsubscribe(shardOf(roomId), clientId, roomId));
+				}
+			} else if (subscribed) {
+				client.subscriptions.add(roomId);
+			} else {
+				client.subscriptions.remove(roomId);
+			}
+		});
+	}
+	
+	/** Helper method to remove a subscriber from a room, from the room's shard. **/
+	private void unsubscribe(Shard shard, int clientId, int roomId) {
+		Room room = shard.rooms.get(roomId);
+		if (room != null) {
+			room.subscribers.remove(clientId);
+		}
+	}
+	
+	/**
+	 * Send the subscribers of each room that has changed in this iteration of the shard's
+	 * thread a single update with all of its changes.
+	 * @param shard the shard to send the updates from
+	 */
+	private void publishUpdates(Shard shard) {
+		for (int i = 0; i < shard.updatedRooms.size(); i++) {
+			Room room = shard.updatedRooms.get(i);
+			JSONObject update = room.takeUpdate();
+			if (update != null && room.subscribers.size() > 0) {
+				setAction(update, ActionCode.ROOM_UPDATE);
+				setSuccess(update);
+				sendTo(shard, room.subscribers.toArray(), new OutboundFrame(update));
+			}
+		}
+		shard.updatedRooms.clear();
+	}
+	
+	/** Helper method to add room info to a response, from the room's latest snapshot. **/
 	private void addRoomInfo(JSONObject response, Room room) {
+		JSONObject info = room.info();
 		response.setInt("roomId", room.id());
 		response.setInt("capacity", room.capacity());
 		response.setInt("size", room.size());
-		response.setJSONObject("attributes", room.getAttributes());
-		
-		JSONArray clientIds = new JSONArray();
-		for (int id : room.getClientIds()) {
-			clientIds.append(id);
-		}
-		response.setJSONArray("clientIds", clientIds);
+		response.setJSONObject("attributes", info.getJSONObject("attributes"));
+		response.setJSONArray("clientIds", info.getJSONArray("clientIds"));
 	}
 	
 	/**
 	 * Set the attributes of a room.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
 	 * @param roomId the id of the room
 	 * @param attributes the object to set as the new attributes
-	 * @return the response to send to the client
 	 */
-	private JSONObject setRoomAttributes(int roomId, JSONObject attributes) {
-		JSONObject response = new JSONObject();
-		setAction(response, ActionCode.SET_ROOM_ATTRIBUTES);
-
-		Room room = rooms.get(roomId);
-		if (room != null) {
-			room.setAttributes(attributes);
-			setSuccess(response);
-		} else {
-			setError(response, ErrorCode.ROOM_NOT_FOUND);
-		}
-		
-		return response;
+	private void setRoomAttributes(Shard shard, Request request, int roomId, JSONObject attributes) {
+		onShard(shard, roomId, () -> {
+			Shard owner = shardOf(roomId);
+			JSONObject response = new JSONObject();
+			setAction(response, ActionCode.SET_ROOM_ATTRIBUTES);
+			
+			Room room = owner.rooms.get(roomId);
+			if (room != null) {
+				owner.roomAttributes.removeAll(roomId, room.getAttributes());
+				room.setAttributes(attributes);
+				owner.roomAttributes.addAll(roomId, attributes);
+				setSuccess(response);
+			} else {
+				setError(response, ErrorCode.ROOM_NOT_FOUND);
+			}
+			reply(owner, request, response);
+		});
 	}
 	
 	/**
 	 * Set a single attribute for a room, or overwrite it if the key already exists.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
 	 * @param roomId the id of the room
 	 * @param key the key to associate to the value
 	 * @param value the value to be associated with the key
-	 * @return the response to send to the client
 	 */
-	private JSONObject putRoomAttribute(int roomId, String key, Object value) {
-		JSONObject response = new JSONObject();
-		setAction(response, ActionCode.PUT_ROOM_ATTRIBUTE);
-
-		Room room = rooms.get(roomId);
-		if (room != null) {
-			setSuccess(response);
-			// This is the only way to figure out what kind of object was passed in
-			if (value instanceof Integer) {
-				room.putAttribute(key, (int) value);
-			} else if (value instanceof String) {
-				room.putAttribute(key, (String) value);
-			} else if (value instanceof Boolean) {
-				room.putAttribute(key, (boolean) value);
-			} else if (value instanceof JSONObject) {
-				room.putAttribute(key, (JSONObject) value);
-			} else if (value instanceof JSONArray) {
-				room.putAttribute(key, (JSONArray) value);
-			} else if (value instanceof Float) {
-				room.putAttribute(key, (float) value);
-			} else if (value instanceof Double) {
-				room.putAttribute(key, (double) value);
-			} else if (value instanceof Long) {
-				room.putAttribute(key, (long) value);
+	private void putRoomAttribute(Shard shard, Request request, int roomId, String key, Object value) {
+		onShard(shard, roomId, () -> {
+			Shard owner = shardOf(roomId);
+			JSONObject response = new JSONObject();
+			setAction(response, ActionCode.PUT_ROOM_ATTRIBUTE);
+			
+			Room room = owner.rooms.get(roomId);
+			if (room == null) {
+				setError(response, ErrorCode.ROOM_NOT_FOUND);
+			} else {
+				Object oldValue = room.getAttributes().hasKey(key) ? room.getAttributes().get(key) : null;
+				if (putAttribute(room, key, value)) {
+					// The index follows whatever the room actually stored
+					if (oldValue != null) {
+						owner.roomAttributes.remove(roomId, key, oldValue);
+					}
+					owner.roomAttributes.add(roomId, key, room.getAttributes().get(key));
+					setSuccess(response);
+				} else {
+					setError(response, ErrorCode.INVALID_VALUE);
+				}
 			}
+			reply(owner, request, response);
+		});
+	}
+	
+	/**
+	 * Helper method to set a single attribute of a room, if its value is of a type that can be stored.
+	 * @return false if the value is of any other type, such as null, and the room is left as it was
+	 */
+	private static boolean putAttribute(Room room, String key, Object value) {
+		// This is the only way to figure out what kind of object was passed in
+		if (value instanceof Integer) {
+			room.putAttribute(key, (int) value);
+		} else if (value instanceof String) {
+			room.putAttribute(key, (String) value);
+		} else if (value instanceof Boolean) {
+			room.putAttribute(key, (boolean) value);
+		} else if (value instanceof JSONObject) {
+			room.putAttribute(key, (JSONObject) value);
+		} else if (value instanceof JSONArray) {
+			room.putAttribute(key, (JSONArray) value);
+		} else if (value instanceof Float) {
+			room.putAttribute(key, (float) value);
+		} else if (value instanceof Double) {
+			room.putAttribute(key, (double) value);
+		} else if (value instanceof Long) {
+			room.putAttribute(key, (long) value);
 		} else {
-			setError(response, ErrorCode.ROOM_NOT_FOUND);
+			return false;
 		}
-		
-		return response;
+		return true;
 	}
 	
 	/**
-	 * Set the attributes associated with this server.
+	 * Set the attributes associated with this server. This runs on the first shard.
 	 * @param attributes the object to set as the new attributes
 	 * @return the response to send to the client
 	 */
@@ -454,6 +1517,7 @@ public class GameServer {
 	
 	/**
 	 * Set a single attribute for this server, or overwrite it if the key already exists.
+	 * This runs on the first shard.
 	 * @param key the key to associate to the value
 	 * @param value the value to be associated with the key
 	 * @return the response to send to the client
@@ -485,7 +1549,7 @@ public class GameServer {
 	}
 	
 	/**
-	 * Get the attributes associated with this server.
+	 * Get the attributes associated with this server. This runs on the first shard.
 	 * @return the response to send to the client
 	 */
 	private JSONObject getServerAttributes() {
@@ -498,41 +1562,220 @@ public class GameServer {
 	
 	/**
 	 * Send a message to one or more clients.
+	 * @param shard the shard of the current thread
 	 * @param senderId the id of the sender
 	 * @param recipientIds an array containing the ids of all recipients
-	 * @param message the message text
+	 * @param message the encoded message body
 	 */
-	private void sendMessage(int senderId, JSONArray recipientIds, JSONObject message) {
-		for (int id : recipientIds.getIntArray()) {
-			sendTo(senderId, id, message);
-		}
+	private void sendMessage(Shard shard, int senderId, JSONArray recipientIds, RawValue message) {
+		OutboundFrame frame = messageFrame(senderId, message);
+		sendTo(shard, recipientIds.getIntArray(), frame);
 	}
 	
 	/**
 	 * Send a message to all clients in the same room as the sender, including the sender itself.
+	 * The message goes through the room's shard, so every client in the room receives the
+	 * room's messages in the same order.
+	 * @param shard the shard of the current thread
 	 * @param the id of the sender
-	 * @param message the message text
+	 * @param message the encoded message body
+	 */
+	private void broadcastMessage(Shard shard, int senderId, RawValue message) {
+		OutboundFrame frame = messageFrame(senderId, message);
+		onShard(shard, senderId, () -> {
+			Connection sender = shardOf(senderId).clients.get(senderId);
+			if (sender != null && sender.roomId >= 0) {
+				int roomId = sender.roomId;
+				onShard(sender.shard, roomId, () -> {
+					Shard owner = shardOf(roomId);
+					Room room = owner.rooms.get(roomId);
+					if (shards.length == 1) {
+						for (int i = 0; i < room.size(); i++) {
+							sendTo(owner, room.clientId(i), frame);
+						}
+					} else {
+						sendTo(owner, room.clientIds(), frame);
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Send an unreliable message to every other client in the same room as the sender.
+	 * This is called by the relay's thread, so it goes through the sender's shard to find the room.
+	 * @param senderId the id of the sender
+	 * @param datagram the datagram that delivers the message, which is shared by every recipient
+	 */
+	void broadcastUnreliable(int senderId, ByteBuffer datagram) {
+		DatagramRelay relay = this.relay;
+		shardOf(senderId).post(() -> {
+			Connection sender = shardOf(senderId).clients.get(senderId);
+			if (sender != null && sender.roomId >= 0) {
+				int roomId = sender.roomId;
+				onShard(sender.shard, roomId, () -> {
+					Room room = shardOf(roomId).rooms.get(roomId);
+					for (int i = 0; i < room.size(); i++) {
+						int clientId = room.clientId(i);
+						if (clientId != senderId) {
+							relay.sendTo(clientId, datagram);
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Merge values into a client's part of its room's state. Nothing is sent until the room's next tick.
+	 * @param shard the shard of the current thread
+	 * @param clientId the id of the client
+	 * @param values the values to merge
 	 */
-	private void broadcastMessage(int senderId, JSONObject message) {
-		Integer roomId = clientIdToRoomId.get(senderId);
-		if (roomId != null) {
-			Room room = rooms.get(roomId);
-			for (int id : room.getClientIds()) {
-				sendTo(senderId, id, message);
+	private void updateState(Shard shard, int clientId, JSONObject values) {
+		onShard(shard, clientId, () -> {
+			Connection client = shardOf(clientId).clients.get(clientId);
+			if (client != null && client.roomId >= 0) {
+				int roomId = client.roomId;
+				onShard(client.shard, roomId, () -> {
+					Room room = shardOf(roomId).rooms.get(roomId);
+					// The client may have left while this was on its way
+					if (room != null && room.hasClient(clientId)) {
+						room.updateState(clientId, values);
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Set how many times per second a room sends its state to the clients in it.
+	 * @param shard the shard of the current thread
+	 * @param request the request to respond to
+	 * @param roomId the id of the room
+	 * @param tickRate the number of ticks per second, or 0 to stop ticking
+	 */
+	private void setTickRate(Shard shard, Request request, int roomId, int tickRate) {
+		onShard(shard, roomId, () -> {
+			Shard owner = shardOf(roomId);
+			JSONObject response = new JSONObject();
+			setAction(response, ActionCode.SET_TICK_RATE);
+			
+			Room room = owner.rooms.get(roomId);
+			if (room != null) {
+				startTicking(owner, room, Math.max(0, Math.min(tickRate, MAX_TICK_RATE)));
+				setSuccess(response);
+			} else {
+				setError(response, ErrorCode.ROOM_NOT_FOUND);
+			}
+			reply(owner, request, response);
+		});
+	}
+	
+	/**
+	 * Helper method to schedule a room's ticks at a new rate, from the room's shard. The ticks
+	 * are run on the shard, which sends the room's state on any tick that it has changed.
+	 */
+	private void startTicking(Shard shard, Room room, int tickRate) {
+		if (tickRate == 0) {
+			room.setTicker(0, null);
+			return;
+		}
+		int roomId = room.id();
+		long period = TimeUnit.SECONDS.toNanos(1) / tickRate;
+		ScheduledFuture<?> task = ticker().scheduleAtFixedRate(() -> {
+			shard.post(() -> tick(shard, roomId, room));
+		}, period, period, TimeUnit.NANOSECONDS);
+		room.setTicker(tickRate, task);
+	}
+	
+	/** Helper method to create the thread that schedules every room's ticks, the first time a room ticks. **/
+	private synchronized ScheduledExecutorService ticker() {
+		if (ticker == null) {
+			ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return ticker;
+	}
+	
+	/**
+	 * Run one tick of a room, from the room's shard, and send its state to every client in it
+	 * if it has changed. Snapshots replace each other, so they may be dropped for slow clients.
+	 */
+	private void tick(Shard shard, int roomId, Room room) {
+		if (shard.rooms.get(roomId) != room) {
+			// Removed since this tick was scheduled, and maybe reused with a different id
+			return;
+		}
+		JSONObject snapshot = room.tick();
+		if (snapshot != null && room.size() > 0) {
+			setAction(snapshot, ActionCode.ROOM_SNAPSHOT);
+			setSuccess(snapshot);
+			sendTo(shard, room.clientIds(), new OutboundFrame(snapshot, null, null, true));
+		}
+	}
+	
+	/**
+	 * Helper method to build the frame that delivers a message. It has no recipient-specific
+	 * fields, so it is encoded once and shared by every recipient. The message body is copied
+	 * into the frame without being decoded.
+	 */
+	private OutboundFrame messageFrame(int senderId, RawValue message) {
+		JSONObject messageData = new JSONObject();
+		setAction(messageData, ActionCode.GET_MESSAGE);
+		setSuccess(messageData);
+		messageData.setInt("senderId", senderId);
+		return new OutboundFrame(messageData, "message", message, true);
+	}
+	
+	/**
+	 * Helper method to send a frame to several clients. Recipients that belong to other shards
+	 * are handed to their shards in a single task per shard.
+	 */
+	private void sendTo(Shard shard, int[] recipientIds, OutboundFrame frame) {
+		if (shards.length == 1) {
+			for (int id : recipientIds) {
+				sendTo(shard, id, frame);
+			}
+			return;
+		}
+		int[] counts = new int[shards.length];
+		for (int id : recipientIds) {
+			counts[shardOf(id).index]++;
+		}
+		for (Shard owner : shards) {
+			if (counts[owner.index] == 0) {
+				continue;
+			}
+			int[] ids = new int[counts[owner.index]];
+			int i = 0;
+			for (int id : recipientIds) {
+				if (shardOf(id) == owner) {
+					ids[i++] = id;
+				}
+			}
+			if (owner == shard) {
+				for (int id : ids) {
+					sendTo(owner, id, frame);
+				}
+			} else {
+				owner.post(() -> {
+					for (int id : ids) {
+						sendTo(owner, id, frame);
+					}
+				});
 			}
 		}
 	}
 	
-	/** Helper method to send a message to a client. */
-	private void sendTo(int senderId, int recipientId, JSONObject message) {
-		Client recipient = clients.get(recipientId);
+	/** Helper method to send a frame to a client of the current shard. */
+	private void sendTo(Shard shard, int recipientId, OutboundFrame frame) {
+		Connection recipient = shard.clients.get(recipientId);
 		if (recipient != null) {
-			JSONObject messageData = new JSONObject();
-			setAction(messageData, ActionCode.GET_MESSAGE);
-			setSuccess(messageData);
-			messageData.setInt("senderId", senderId);
-			messageData.setJSONObject("message", message);
-			send(recipient, messageData);
+			send(recipient, frame);
 		}
 	}
 	
@@ -0,0 +1,168 @@
+package jediahkatz.gameserver;
+
+/**
+ * A map from ints to objects, stored in open-addressed arrays so that ids never have to be
+ * boxed. Null values can't be stored, since an empty slot is one with a null value.
+ * To iterate over the values without allocating, loop over the slots and skip the empty ones:
+ * <pre>
+ * for (int i = 0; i &lt; map.slots(); i++) {
+ *   V value = map.valueAt(i);
+ *   if (value != null) { ... }
+ * }
+ * </pre>
+ * @author jediahkatz
+ */
+class IntMap<V> {
+	private int[] keys;
+	private Object[] values;
+	private int size = 0;
+	// Always one less than a power of two
+	private int mask;
+
+	IntMap() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity the number of slots to start with, which must be a power of two
+	 */
+	IntMap(int capacity) {
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Get the value associated with a key, or null if there isn't one.
+	 */
+	@SuppressWarnings("unchecked")
+	V get(int key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return (V) values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Return true if a value is associated with the key.
+	 */
+	boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Associate a value with a key, replacing any value it had.
+	 * @throws NullPointerException if the value is null
+	 */
+	void put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("IntMap can't store null values.");
+		}
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+		// Keep the table at most half full, so that probes stay short
+		if (size * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+	}
+
+	/**
+	 * Remove the value associated with a key.
+	 * @return the value that was removed, or null if there wasn't one
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(int key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				V value = (V) values[slot];
+				values[slot] = null;
+				size--;
+				closeGap(slot);
+				return value;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the number of entries in the map.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of slots, for iterating with valueAt.
+	 */
+	int slots() {
+		return values.length;
+	}
+
+	/**
+	 * Get the value in a slot, or null if the slot is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	/**
+	 * Move entries back into a slot that has just been emptied, so that no entry is separated
+	 * from its home slot by an empty one.
+	 */
+	private void closeGap(int gap) {
+		int slot = (gap + 1) & mask;
+		while (values[slot] != null) {
+			int home = hash(keys[slot]) & mask;
+			// Move the entry if its home slot isn't cyclically between the gap and where it is
+			if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+				keys[gap] = keys[slot];
+				values[gap] = values[slot];
+				values[slot] = null;
+				gap = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Move every entry into a table with the given number of slots.
+	 */
+	@SuppressWarnings("unchecked")
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				put(oldKeys[i], (V) oldValues[i]);
+			}
+		}
+	}
+
+	/**
+	 * Spread sequential ids, and ids that share a shard, across the whole table.
+	 */
+	static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,145 @@
+package jediahkatz.gameserver;
+
+import java.util.Arrays;
+
+/**
+ * A set of ints, kept in a dense array so that it can be iterated over by index without
+ * allocating or boxing, with an open-addressed index for finding elements.
+ * Removing an element moves the last element into its place, so the order isn't stable.
+ * @author jediahkatz
+ */
+class IntSet {
+	private int[] elements;
+	private int size = 0;
+	// Each slot holds an element's position in the array plus one, or 0 if the slot is empty
+	private int[] index;
+	// Always one less than a power of two
+	private int mask;
+
+	IntSet() {
+		elements = new int[8];
+		index = new int[16];
+		mask = index.length - 1;
+	}
+
+	/**
+	 * Get the number of elements in the set.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Get the element at the given position, which must be less than the size.
+	 */
+	int get(int position) {
+		return elements[position];
+	}
+
+	/**
+	 * Return true if the set contains the value.
+	 */
+	boolean contains(int value) {
+		return index[find(value)] != 0;
+	}
+
+	/**
+	 * Add a value to the set, if it isn't there already.
+	 */
+	void add(int value) {
+		int slot = find(value);
+		if (index[slot] != 0) {
+			return;
+		}
+		if (size == elements.length) {
+			int[] grown = new int[size * 2];
+			System.arraycopy(elements, 0, grown, 0, size);
+			elements = grown;
+		}
+		elements[size++] = value;
+		index[slot] = size;
+		// Keep the index at most half full, so that probes stay short
+		if (size * 2 > index.length) {
+			reindex(index.length * 2);
+		}
+	}
+
+	/**
+	 * Remove a value from the set, if it's there.
+	 */
+	void remove(int value) {
+		int slot = find(value);
+		int position = index[slot] - 1;
+		if (position < 0) {
+			return;
+		}
+		index[slot] = 0;
+		closeGap(slot);
+		size--;
+		if (position != size) {
+			// Fill the hole with the last element
+			int last = elements[size];
+			elements[position] = last;
+			index[find(last)] = position + 1;
+		}
+	}
+
+	/**
+	 * Remove every element from the set.
+	 */
+	void clear() {
+		if (size > 0) {
+			Arrays.fill(index, 0);
+			size = 0;
+		}
+	}
+	
+	/**
+	 * Copy the elements into a new array.
+	 */
+	int[] toArray() {
+		int[] array = new int[size];
+		System.arraycopy(elements, 0, array, 0, size);
+		return array;
+	}
+
+	/**
+	 * Find the slot of the index that holds a value, or the empty slot where it would go.
+	 */
+	private int find(int value) {
+		int slot = IntMap.hash(value) & mask;
+		while (index[slot] != 0 && elements[index[slot] - 1] != value) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Move entries back into a slot of the index that has just been emptied, so that no entry
+	 * is separated from its home slot by an empty one.
+	 */
+	private void closeGap(int gap) {
+		int slot = (gap + 1) & mask;
+		while (index[slot] != 0) {
+			int home = IntMap.hash(elements[index[slot] - 1]) & mask;
+			// Move the entry if its home slot isn't cyclically between the gap and where it is
+			if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+				index[gap] = index[slot];
+				index[slot] = 0;
+				gap = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Rebuild the index with the given number of slots.
+	 */
+	private void reindex(int capacity) {
+		index = new int[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < size; i++) {
+			index[find(elements[i])] = i + 1;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package jediahkatz.gameserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+/**
+ * Encodes data objects as JSON text.
+ * @author jediahkatz
+ */
+class JsonCodec implements Codec {
+
+	@Override
+	public String name() {
+		return "JSON";
+	}
+
+	@Override
+	public byte[] encode(JSONObject data) {
+		return data.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public JSONObject decode(byte[] buf, int offset, int length) {
+		JSONObject data = JSONObject.parse(new String(buf, offset, length, StandardCharsets.UTF_8));
+		if (data == null) {
+			throw new IllegalArgumentException("Invalid JSON string");
+		}
+		return data;
+	}
+
+	@Override
+	public JSONObject decode(byte[] buf, int offset, int length, String rawKey, RawValue[] raw) {
+		JSONObject data = new JSONObject();
+		JsonScanner scanner = new JsonScanner(buf, offset, length);
+		scanner.beginObject();
+		String key;
+		while ((key = scanner.nextKey()) != null) {
+			if (key.equals(rawKey) && scanner.peek() == '{') {
+				int start = scanner.position();
+				scanner.skipValue();
+				raw[0] = new RawValue(this, rawBytes(buf, start, scanner.position()));
+			} else {
+				put(data, key, scanner.readValue());
+			}
+		}
+		scanner.endOfInput();
+		return data;
+	}
+	
+	/**
+	 * Helper method to copy a raw value, which is passed on to other clients exactly as it was
+	 * received. The value is only skipped over rather than parsed, so it is checked here for the
+	 * separator byte, which valid JSON never contains unescaped. A client using length-prefixed
+	 * frames could otherwise send it on to clients using delimited ones, splitting their frames.
+	 * @throws IllegalArgumentException if the value contains the separator
+	 */
+	private static byte[] rawBytes(byte[] buf, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (buf[i] == Framing.SEP) {
+				throw new IllegalArgumentException("Unescaped control character in JSON");
+			}
+		}
+		return Arrays.copyOfRange(buf, start, end);
+	}
+
+	@Override
+	public byte[] encode(JSONObject data, String rawKey, RawValue raw) {
+		// Splice the raw value in just before the closing brace
+		String head = data.toString();
+		head = head.substring(0, head.lastIndexOf('}'));
+		if (data.size() > 0) {
+			head += ",";
+		}
+		byte[] headBytes = (head + "\"" + rawKey + "\":").getBytes(StandardCharsets.UTF_8);
+		
+		byte[] bytes = new byte[headBytes.length + raw.bytes.length + 1];
+		System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+		System.arraycopy(raw.bytes, 0, bytes, headBytes.length, raw.bytes.length);
+		bytes[bytes.length - 1] = '}';
+		return bytes;
+	}
+
+	@Override
+	public byte[] withField(byte[] payload, String key, int value) {
+		// Insert the field just after the opening brace
+		int open = 0;
+		while (payload[open] != '{') {
+			open++;
+		}
+		int next = open + 1;
+		while (Character.isWhitespace(payload[next])) {
+			next++;
+		}
+		String field = "\"" + key + "\":" + value + (payload[next] == '}' ? "" : ",");
+		byte[] fieldBytes = field.getBytes(StandardCharsets.UTF_8);
+		byte[] bytes = new byte[payload.length + fieldBytes.length];
+		System.arraycopy(payload, 0, bytes, 0, open + 1);
+		System.arraycopy(fieldBytes, 0, bytes, open + 1, fieldBytes.length);
+		System.arraycopy(payload, open + 1, bytes, open + 1 + fieldBytes.length, payload.length - open - 1);
+		return bytes;
+	}
+	
+	@Override
+	public JSONObject decodeRaw(RawValue raw) {
+		return decode(raw.bytes, 0, raw.bytes.length);
+	}
+	
+	@Override
+	public Object decodeRawField(RawValue raw, String key) {
+		JsonScanner scanner = new JsonScanner(raw.bytes, 0, raw.bytes.length);
+		scanner.beginObject();
+		String next;
+		while ((next = scanner.nextKey()) != null) {
+			if (next.equals(key)) {
+				return scanner.readValue();
+			}
+			scanner.skipValue();
+		}
+		return null;
+	}
+	
+	/**
+	 * Add a value of unknown type to an object.
+	 */
+	static void put(JSONObject data, String key, Object value) {
+		if (value instanceof Integer) {
+			data.setInt(key, (int) value);
+		} else if (value instanceof String) {
+			data.setString(key, (String) value);
+		} else if (value instanceof Boolean) {
+			data.setBoolean(key, (boolean) value);
+		} else if (value instanceof JSONObject) {
+			data.setJSONObject(key, (JSONObject) value);
+		} else if (value instanceof JSONArray) {
+			data.setJSONArray(key, (JSONArray) value);
+		} else if (value instanceof Double) {
+			data.setDouble(key, (double) value);
+		} else if (value instanceof Long) {
+			data.setLong(key, (long) value);
+		}
+		// JSONObject has no setter for null, so null values are left out
+	}
+}
@@ -0,0 +1,250 @@
+package jediahkatz.gameserver;
+
+import java.nio.charset.StandardCharsets;
+
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+/**
+ * Walks through JSON text one value at a time, so that values which aren't needed can be
+ * skipped over without building objects for them. It works directly on UTF-8 bytes, which is
+ * safe because every byte of a multi-byte character is outside the ASCII range.
+ * @author jediahkatz
+ */
+class JsonScanner {
+	private final byte[] buf;
+	private final int end;
+	private int pos;
+	
+	JsonScanner(byte[] buf, int offset, int length) {
+		this.buf = buf;
+		this.pos = offset;
+		this.end = offset + length;
+	}
+	
+	/** Get the index of the next byte to be scanned. **/
+	int position() {
+		return pos;
+	}
+	
+	/**
+	 * Consume the opening brace of an object.
+	 * @throws IllegalArgumentException if the next value isn't an object
+	 */
+	void beginObject() {
+		if (peek() != '{') {
+			throw new IllegalArgumentException("Expected an object");
+		}
+		pos++;
+	}
+	
+	/**
+	 * Consume the next key of the current object, along with the colon after it.
+	 * @return the key, or null if the end of the object was reached
+	 */
+	String nextKey() {
+		byte b = peek();
+		if (b == ',') {
+			pos++;
+			b = peek();
+		}
+		if (b == '}') {
+			pos++;
+			return null;
+		}
+		String key = readString();
+		if (peek() != ':') {
+			throw new IllegalArgumentException("Expected ':' after key");
+		}
+		pos++;
+		return key;
+	}
+	
+	/**
+	 * Get the first character of the next value without consuming it.
+	 */
+	byte peek() {
+		skipWhitespace();
+		if (pos == end) {
+			throw new IllegalArgumentException("Unexpected end of JSON");
+		}
+		return buf[pos];
+	}
+	
+	/**
+	 * Check that nothing but whitespace is left after the value that was scanned.
+	 * @throws IllegalArgumentException if there is anything else
+	 */
+	void endOfInput() {
+		skipWhitespace();
+		if (pos != end) {
+			throw new IllegalArgumentException("Unexpected data after JSON");
+		}
+	}
+	
+	private void skipWhitespace() {
+		while (pos < end && (buf[pos] == ' ' || buf[pos] == '\n' || buf[pos] == '\r' || buf[pos] == '\t')) {
+			pos++;
+		}
+	}
+	
+	/**
+	 * Skip over the next value.
+	 */
+	void skipValue() {
+		byte b = peek();
+		if (b == '"') {
+			skipString();
+		} else if (b == '{' || b == '[') {
+			int depth = 0;
+			do {
+				if (pos == end) {
+					throw new IllegalArgumentException("Unexpected end of JSON");
+				}
+				b = buf[pos];
+				if (b == '"') {
+					skipString();
+					continue;
+				} else if (b == '{' || b == '[') {
+					depth++;
+				} else if (b == '}' || b == ']') {
+					depth--;
+				}
+				pos++;
+			} while (depth > 0);
+		} else {
+			skipLiteral();
+		}
+	}
+	
+	/**
+	 * Read the next value.
+	 * @return the value as a String, Boolean, Integer, Long, Double, JSONObject or JSONArray,
+	 * or JSONObject.NULL
+	 */
+	Object readValue() {
+		byte b = peek();
+		if (b == '"') {
+			return readString();
+		} else if (b == '{' || b == '[') {
+			int start = pos;
+			skipValue();
+			String json = new String(buf, start, pos - start, StandardCharsets.UTF_8);
+			return b == '{' ? JSONObject.parse(json) : JSONArray.parse(json);
+		}
+		
+		int start = pos;
+		skipLiteral();
+		String literal = new String(buf, start, pos - start, StandardCharsets.US_ASCII);
+		switch (literal) {
+		case "true":
+			return true;
+		case "false":
+			return false;
+		case "null":
+			return JSONObject.NULL;
+		}
+		// Numbers are converted the same way JSONObject.parse converts them
+		if (literal.indexOf('.') >= 0 || literal.indexOf('e') >= 0 || literal.indexOf('E') >= 0 
+				|| literal.equals("-0")) {
+			return Double.valueOf(literal);
+		}
+		long value = Long.parseLong(literal);
+		if (value == (int) value) {
+			return (int) value;
+		}
+		return value;
+	}
+	
+	/**
+	 * Read the next value, which must be a string.
+	 */
+	String readString() {
+		if (peek() != '"') {
+			throw new IllegalArgumentException("Expected a string");
+		}
+		int start = ++pos;
+		boolean escaped = false;
+		while (true) {
+			if (pos == end) {
+				throw new IllegalArgumentException("Unterminated string");
+			}
+			byte b = buf[pos];
+			if (b == '"') {
+				break;
+			} else if (b == '\\') {
+				escaped = true;
+				pos++;
+			}
+			pos++;
+		}
+		String str = new String(buf, start, pos - start, StandardCharsets.UTF_8);
+		pos++;
+		return escaped ? unescape(str) : str;
+	}
+	
+	private void skipString() {
+		pos++;
+		while (true) {
+			if (pos >= end) {
+				throw new IllegalArgumentException("Unterminated string");
+			}
+			byte b = buf[pos++];
+			if (b == '"') {
+				return;
+			} else if (b == '\\') {
+				pos++;
+			}
+		}
+	}
+	
+	private void skipLiteral() {
+		int start = pos;
+		while (pos < end) {
+			byte b = buf[pos];
+			if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+				break;
+			}
+			pos++;
+		}
+		if (pos == start) {
+			throw new IllegalArgumentException("Expected a value");
+		}
+	}
+	
+	private static String unescape(String str) {
+		StringBuilder sb = new StringBuilder(str.length());
+		for (int i=0; i<str.length(); i++) {
+			char c = str.charAt(i);
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			c = str.charAt(++i);
+			switch (c) {
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'u':
+				sb.append((char) Integer.parseInt(str.substring(i + 1, i + 5), 16));
+				i += 4;
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
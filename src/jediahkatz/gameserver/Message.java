@@ -5,16 +5,30 @@ import processing.data.JSONObject;
 
 /**
  * An uninstantiable wrapper class that holds data sent by a client.
+ * <p>
+ * The body is kept as the bytes it was received as, and only decoded into a JSONObject the
+ * first time getBody is called. Until then, the convenience methods like getInt find just the
+ * key they are asked for, skipping over the rest of the body. Reading a few keys this way is
+ * much cheaper than decoding the whole body, but to read most of them, call getBody once.
+ * Objects and arrays found this way are decoded again on every call, so changes to them aren't kept.
  * @author jediahkatz
  *
  */
 public class Message {
 	private int senderId;
-	private JSONObject body;
+	// The body as it was received, or null if it was decoded from the start
+	private final RawValue raw;
+	private volatile JSONObject body;
 	
 	Message(int senderId, JSONObject body) {
 		this.senderId = senderId;
 		this.body = body;
+		this.raw = null;
+	}
+	
+	Message(int senderId, RawValue raw) {
+		this.senderId = senderId;
+		this.raw = raw;
 	}
 	
 	/**
@@ -30,46 +44,80 @@ public class Message {
 	 * @return the message body/data
 	 */
 	public JSONObject getBody() {
+		JSONObject body = this.body;
+		if (body == null) {
+			synchronized (this) {
+				body = this.body;
+				if (body == null) {
+					body = raw.decode();
+					this.body = body;
+				}
+			}
+		}
 		return body;
 	}
 	
+	/**
+	 * Return true if the body has the given key.
+	 */
+	public boolean hasKey(String key) {
+		JSONObject body = this.body;
+		return body != null ? body.hasKey(key) : find(key) != null;
+	}
+	
+	/**
+	 * Find the value of a key without decoding the rest of the body.
+	 * @return the value, or null if the body doesn't have the key or has already been decoded
+	 */
+	private Object find(String key) {
+		return body == null ? raw.codec.decodeRawField(raw, key) : null;
+	}
+	
 	/** Convenience method for getBody().getString(key). **/
 	public String getString(String key) {
-		return body.getString(key);
+		Object value = find(key);
+		return value instanceof String ? (String) value : getBody().getString(key);
 	}
 	
 	/** Convenience method for getBody().getInt(key). **/
 	public int getInt(String key) {
-		return body.getInt(key);
+		Object value = find(key);
+		return value instanceof Number ? ((Number) value).intValue() : getBody().getInt(key);
 	}
 	
 	/** Convenience method for getBody().getBoolean(key). **/
 	public boolean getBoolean(String key) {
-		return body.getBoolean(key);
+		Object value = find(key);
+		return value instanceof Boolean ? (Boolean) value : getBody().getBoolean(key);
 	}
 	
 	/** Convenience method for getBody().getJSONObject(key). **/
 	public JSONObject getJSONObject(String key) {
-		return body.getJSONObject(key);
+		Object value = find(key);
+		return value instanceof JSONObject ? (JSONObject) value : getBody().getJSONObject(key);
 	}
 	
 	/** Convenience method for getBody().getJSONArray(key). **/
 	public JSONArray getJSONArray(String key) {
-		return body.getJSONArray(key);
+		Object value = find(key);
+		return value instanceof JSONArray ? (JSONArray) value : getBody().getJSONArray(key);
 	}
 	
 	/** Convenience method for getBody().getFloat(key). **/
 	public float getFloat(String key) {
-		return body.getFloat(key);
+		Object value = find(key);
+		return value instanceof Number ? ((Number) value).floatValue() : getBody().getFloat(key);
 	}
 	
 	/** Convenience method for getBody().getDouble(key). **/
 	public double getDouble(String key) {
-		return body.getDouble(key);
+		Object value = find(key);
+		return value instanceof Number ? ((Number) value).doubleValue() : getBody().getDouble(key);
 	}
 	
 	/** Convenience method for getBody().getLong(key). **/
 	public long getLong(String key) {
-		return body.getLong(key);
+		Object value = find(key);
+		return value instanceof Number ? ((Number) value).longValue() : getBody().getLong(key);
 	}
 }
@@ -0,0 +1,16 @@
+package jediahkatz.gameserver;
+
+/**
+ * Which thread a client's MessageListener is called on.
+ * @author jediahkatz
+ */
+public enum MessageDispatch {
+	/** Call the listener on the thread that receives data from the server, as soon as each message
+	 * is decoded. This has the lowest latency, but the listener must be thread-safe and quick,
+	 * since nothing else is received while it runs. Exceptions it throws are counted by
+	 * getListenerFailures instead of stopping the client. **/
+	RECEIVE_THREAD,
+	/** Queue the messages and call the listener on the sketch's thread, just before draw().
+	 * This is safe for code that draws or touches the sketch's variables. **/
+	SKETCH_THREAD,
+}
@@ -0,0 +1,14 @@
+package jediahkatz.gameserver;
+
+/**
+ * Receives the messages sent to a client as they arrive, instead of them being queued
+ * for getNextMessage. See GameClient.setMessageListener.
+ * @author jediahkatz
+ */
+public interface MessageListener {
+	/**
+	 * Called once for each message, in the order they were received.
+	 * @param message the message that was received
+	 */
+	void messageReceived(Message message);
+}
@@ -0,0 +1,68 @@
+package jediahkatz.gameserver;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection backed by a non-blocking SocketChannel. Reads and writes never block;
+ * data that can't be written immediately stays queued until the socket becomes writable.
+ * @author jediahkatz
+ */
+class NioConnection extends Connection {
+	private final EventLoop loop;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private boolean broken = false;
+	
+	NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+		this.loop = loop;
+		this.channel = channel;
+		this.key = key;
+	}
+	
+	/**
+	 * Read whatever data is available into the decoder.
+	 * @return false if the client has closed the connection, otherwise true
+	 */
+	boolean read() throws IOException {
+		return decoder.fill(channel) >= 0;
+	}
+	
+	@Override
+	long flush() {
+		if (broken) {
+			return 0;
+		}
+		try {
+			long written = outbound.flush(channel);
+			// Wait for the socket to become writable if it couldn't take everything
+			key.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return written;
+		} catch (IOException | CancelledKeyException e) {
+			fail();
+			return 0;
+		}
+	}
+	
+	/**
+	 * Mark this connection as broken and have the event loop clean up after the client.
+	 * Cleanup is deferred because we may be in the middle of iterating over a room's clients.
+	 */
+	void fail() {
+		if (!broken) {
+			broken = true;
+			loop.closeLater(this);
+		}
+	}
+	
+	@Override
+	void closeSocket() {
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+}
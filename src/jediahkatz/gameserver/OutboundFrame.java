@@ -0,0 +1,115 @@
+package jediahkatz.gameserver;
+
+import processing.data.JSONObject;
+
+/**
+ * A data object to be sent to one or more clients. It is encoded lazily, at most once for 
+ * each codec and framing in use, and every recipient that uses the same codec and framing
+ * is sent the same immutable bytes.
+ * @author jediahkatz
+ */
+class OutboundFrame {
+	private static final int CODECS = Codec.values().length;
+	private static final int FRAMINGS = Framing.values().length;
+	private final JSONObject data;
+	// An extra key whose value is still encoded, or null if there isn't one
+	private final String rawKey;
+	private final RawValue raw;
+	// Whether the raw value has had to be decoded into data, for a different codec
+	private boolean rawDecoded = false;
+	// Whether a slow consumer policy may drop this frame
+	private final boolean droppable;
+	// Encoded payloads, one per codec that has been asked for
+	private final Codec[] codecs = new Codec[CODECS];
+	private final byte[][] payloads = new byte[CODECS][];
+	// Framed bytes for each codec slot above, indexed by framing ordinal
+	private final byte[][][] frames = new byte[CODECS][FRAMINGS][];
+	
+	/**
+	 * @param data the data object to send. It must not be modified afterwards.
+	 */
+	OutboundFrame(JSONObject data) {
+		this(data, null, null, false);
+	}
+	
+	/**
+	 * @param data the data object to send. It must not be modified afterwards.
+	 * @param rawKey an extra key to send, whose value is still encoded
+	 * @param raw the encoded value of the extra key, or null if there isn't one
+	 * @param droppable true if a slow consumer policy may drop this frame
+	 */
+	OutboundFrame(JSONObject data, String rawKey, RawValue raw, boolean droppable) {
+		this.data = data;
+		this.rawKey = rawKey;
+		this.raw = raw;
+		this.droppable = droppable;
+	}
+	
+	/**
+	 * Make a frame whose payload has already been encoded. It can only be sent with that codec.
+	 */
+	private OutboundFrame(Codec codec, byte[] payload, boolean droppable) {
+		this(null, null, null, droppable);
+		codecs[0] = codec;
+		payloads[0] = payload;
+	}
+	
+	/**
+	 * Make a copy of this frame for a single recipient, with an extra int field added to its 
+	 * encoded bytes. Nothing has to be encoded again, so this is cheap for frames that are cached.
+	 * @param codec the codec of the recipient, which is the only codec the copy can be sent with
+	 * @param key the key of the extra field, which the data object must not have already
+	 * @param value the value of the extra field
+	 */
+	synchronized OutboundFrame withField(Codec codec, String key, int value) {
+		return new OutboundFrame(codec, codec.withField(payloads[slot(codec)], key, value), droppable);
+	}
+	
+	/**
+	 * Return true if a slow consumer policy may drop this frame rather than send it.
+	 */
+	boolean isDroppable() {
+		return droppable;
+	}
+	
+	/**
+	 * Get the bytes to write to a connection that uses the given codec and framing.
+	 * The returned array is shared, and must not be modified. A frame may be sent to clients
+	 * on several shards at once, so the cache is only touched by one thread at a time.
+	 */
+	synchronized byte[] bytes(Codec codec, Framing framing) {
+		int slot = slot(codec);
+		byte[] frame = frames[slot][framing.ordinal()];
+		if (frame == null) {
+			frame = framing.frame(payloads[slot]);
+			frames[slot][framing.ordinal()] = frame;
+		}
+		return frame;
+	}
+	
+	/**
+	 * Find the cache slot for a codec, encoding the data object if it hasn't been yet.
+	 */
+	private int slot(Codec codec) {
+		int slot = 0;
+		while (codecs[slot] != null) {
+			if (codecs[slot] == codec) {
+				return slot;
+			}
+			slot++;
+		}
+		codecs[slot] = codec;
+		if (raw == null || rawDecoded) {
+			payloads[slot] = codec.encode(data);
+		} else if (raw.codec == codec) {
+			// Copy the raw value straight into the payload
+			payloads[slot] = codec.encode(data, rawKey, raw);
+		} else {
+			// The raw value has to be translated to a different codec
+			data.setJSONObject(rawKey, raw.decode());
+			rawDecoded = true;
+			payloads[slot] = codec.encode(data);
+		}
+		return slot;
+	}
+}
@@ -0,0 +1,182 @@
+package jediahkatz.gameserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Frames waiting to be written to a single client. Frames are queued as they are sent and
+ * written together when the queue is flushed, so that a burst of small frames costs one 
+ * write instead of one write each. If the client falls behind, the queue applies a
+ * SlowConsumerPolicy between a high and a low watermark.
+ * @author jediahkatz
+ */
+class OutboundQueue {
+	// The most buffers to pass to a single gathering write
+	private static final int MAX_GATHER = 256;
+	private final ArrayDeque<Entry> frames = new ArrayDeque<>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private long queuedBytes = 0;
+	// Set when the queue goes over the high watermark, and cleared when it gets back under the low one
+	private boolean congested = false;
+	// Metrics
+	private long framesQueued = 0;
+	private long framesDropped = 0;
+	private long bytesWritten = 0;
+	private long flushes = 0;
+	
+	/**
+	 * Add a frame to the end of the queue.
+	 * @param frame the bytes of the frame, which will not be modified
+	 * @param droppable true if the slow consumer policy is allowed to drop this frame
+	 * @param highWatermark the number of queued bytes above which the policy applies
+	 * @param lowWatermark the number of queued bytes to get back down to
+	 * @param policy what to do when the queue goes over the high watermark
+	 * @return false if the client should be disconnected, otherwise true
+	 */
+	boolean add(byte[] frame, boolean droppable, long highWatermark, long lowWatermark, 
+			SlowConsumerPolicy policy) {
+		if (congested && queuedBytes <= lowWatermark) {
+			congested = false;
+		}
+		if (droppable && congested && policy == SlowConsumerPolicy.DROP_NEWEST) {
+			framesDropped++;
+			return true;
+		}
+		frames.add(new Entry(ByteBuffer.wrap(frame), droppable));
+		queuedBytes += frame.length;
+		framesQueued++;
+		
+		if (queuedBytes > highWatermark) {
+			congested = true;
+			switch (policy) {
+			case DROP_OLDEST:
+				dropOldest(lowWatermark);
+				break;
+			case DISCONNECT:
+				return false;
+			default:
+				break;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Drop droppable frames, oldest first, until the queue is down to the given size.
+	 * A frame that has been partly written can't be dropped.
+	 */
+	private void dropOldest(long target) {
+		Iterator<Entry> it = frames.iterator();
+		while (queuedBytes > target && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.droppable && entry.buf.position() == 0) {
+				it.remove();
+				queuedBytes -= entry.buf.remaining();
+				framesDropped++;
+			}
+		}
+	}
+	
+	/**
+	 * Return true if there are no frames waiting to be written.
+	 */
+	boolean isEmpty() {
+		return frames.isEmpty();
+	}
+	
+	/**
+	 * Write as many queued frames to a channel as it will accept, using gathering writes.
+	 * @return the number of bytes written
+	 */
+	long flush(GatheringByteChannel channel) throws IOException {
+		long written = 0;
+		while (!frames.isEmpty()) {
+			int count = 0;
+			for (Entry frame : frames) {
+				gather[count++] = frame.buf;
+				if (count == MAX_GATHER) {
+					break;
+				}
+			}
+			written += channel.write(gather, 0, count);
+			boolean full = gather[count - 1].hasRemaining();
+			Arrays.fill(gather, 0, count, null);
+			while (!frames.isEmpty() && !frames.peek().buf.hasRemaining()) {
+				frames.poll();
+			}
+			if (full) {
+				// The socket won't accept any more for now
+				break;
+			}
+		}
+		recordFlush(written);
+		return written;
+	}
+	
+	/**
+	 * Remove every queued frame and return them joined together, so they can be written at once.
+	 */
+	byte[] drain() {
+		byte[] joined = new byte[(int) queuedBytes];
+		int pos = 0;
+		for (Entry frame : frames) {
+			int length = frame.buf.remaining();
+			frame.buf.get(joined, pos, length);
+			pos += length;
+		}
+		frames.clear();
+		recordFlush(joined.length);
+		return joined;
+	}
+	
+	private void recordFlush(long written) {
+		queuedBytes -= written;
+		bytesWritten += written;
+		flushes++;
+	}
+	
+	/** Get the number of bytes waiting to be written. **/
+	long queuedBytes() {
+		return queuedBytes;
+	}
+	
+	/** Get the number of frames waiting to be written. **/
+	int queuedFrames() {
+		return frames.size();
+	}
+	
+	/** Get the total number of frames ever added to this queue. **/
+	long framesQueued() {
+		return framesQueued;
+	}
+	
+	/** Get the total number of frames dropped by the slow consumer policy. **/
+	long framesDropped() {
+		return framesDropped;
+	}
+	
+	/** Get the total number of bytes written from this queue. **/
+	long bytesWritten() {
+		return bytesWritten;
+	}
+	
+	/** Get the number of times this queue has been flushed. **/
+	long flushes() {
+		return flushes;
+	}
+	
+	/** A queued frame. **/
+	private static class Entry {
+		final ByteBuffer buf;
+		final boolean droppable;
+		
+		Entry(ByteBuffer buf, boolean droppable) {
+			this.buf = buf;
+			this.droppable = droppable;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package jediahkatz.gameserver;
+
+/**
+ * What a client does when data arrives for one of its buffers, such as its message queue,
+ * and the buffer is already full because the sketch hasn't been reading it.
+ * @author jediahkatz
+ */
+public enum OverflowPolicy {
+	/** Drop the oldest data in the buffer to make room. **/
+	DROP_OLDEST,
+	/** Drop the data that just arrived. **/
+	DROP_NEWEST,
+	/** Stop receiving until the sketch reads from the buffer. Nothing is lost, but responses to
+	 * requests wait too, so a sketch that stops reading can make its own requests time out. **/
+	BLOCK,
+}
@@ -0,0 +1,27 @@
+package jediahkatz.gameserver;
+
+import processing.net.Client;
+
+/**
+ * A connection backed by a processing.net Client.
+ * @author jediahkatz
+ */
+class ProcessingConnection extends Connection {
+	final Client client;
+	
+	ProcessingConnection(Client client) {
+		this.client = client;
+	}
+	
+	@Override
+	long flush() {
+		byte[] data = outbound.drain();
+		client.write(data);
+		return data.length;
+	}
+	
+	@Override
+	void closeSocket() {
+		client.stop();
+	}
+}
@@ -0,0 +1,27 @@
+package jediahkatz.gameserver;
+
+import processing.data.JSONObject;
+
+/**
+ * An object value that has been kept in its encoded form, so that the server can pass it
+ * along to other clients without decoding and re-encoding it.
+ * @author jediahkatz
+ */
+class RawValue {
+	// The codec the value was encoded with
+	final Codec codec;
+	// The encoded value. It must not be modified.
+	final byte[] bytes;
+	
+	RawValue(Codec codec, byte[] bytes) {
+		this.codec = codec;
+		this.bytes = bytes;
+	}
+	
+	/**
+	 * Decode the value.
+	 */
+	JSONObject decode() {
+		return codec.decodeRaw(this);
+	}
+}
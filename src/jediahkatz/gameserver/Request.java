@@ -0,0 +1,18 @@
+package jediahkatz.gameserver;
+
+/**
+ * A request from a client that is waiting for a response: where to send the response,
+ * and the id the client gave the request so that it can tell which response is which.
+ * @author jediahkatz
+ */
+class Request {
+	// The connection to send the response to
+	final Connection connection;
+	// The id to echo back in the response, or -1 if the client didn't give one
+	final int id;
+
+	Request(Connection connection, int id) {
+		this.connection = connection;
+		this.id = id;
+	}
+}
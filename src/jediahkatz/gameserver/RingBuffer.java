@@ -0,0 +1,149 @@
+package jediahkatz.gameserver;
+
+import java.util.ArrayList;
+
+/**
+ * A fixed-capacity queue for passing items from one producer thread to consumers.
+ * The producer adds items without locking, unless the buffer is full. Consumers lock
+ * the buffer, so that many threads can poll it as long as only one thread adds to it.
+ * @author jediahkatz
+ */
+class RingBuffer<T> {
+	private final Object[] items;
+	// Always one less than a power of two
+	private final int mask;
+	// The number of items ever polled and added. Only the producer writes tail, and head is only
+	// written with the lock held.
+	private volatile long head = 0;
+	private volatile long tail = 0;
+	// Whether the producer is waiting for room, with the BLOCK policy
+	private boolean producerWaiting = false;
+	private boolean closed = false;
+	// Metrics, only written by the producer
+	volatile long overflows = 0;
+	volatile long dropped = 0;
+
+	/**
+	 * @param capacity the most items the buffer can hold, which is rounded up to a power of two
+	 */
+	RingBuffer(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive.");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		items = new Object[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Add an item. Only the producer thread may call this.
+	 * @param item the item to add
+	 * @param policy what to do if the buffer is full
+	 * @return false if the item was dropped, or the buffer was closed while waiting for room
+	 */
+	boolean offer(T item, OverflowPolicy policy) {
+		long t = tail;
+		if (t - head == items.length) {
+			overflows++;
+			switch (policy) {
+			case DROP_NEWEST:
+				dropped++;
+				return false;
+			case DROP_OLDEST:
+				synchronized (this) {
+					// A consumer may have made room meanwhile
+					if (t - head == items.length) {
+						items[(int) head & mask] = null;
+						head++;
+						dropped++;
+					}
+				}
+				break;
+			case BLOCK:
+				synchronized (this) {
+					try {
+						while (t - head == items.length && !closed) {
+							producerWaiting = true;
+							wait();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					} finally {
+						producerWaiting = false;
+					}
+					if (closed) {
+						return false;
+					}
+				}
+				break;
+			}
+		}
+		items[(int) t & mask] = item;
+		tail = t + 1;
+		return true;
+	}
+
+	/**
+	 * Remove and return the oldest item, or null if the buffer is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized T poll() {
+		long h = head;
+		if (h == tail) {
+			return null;
+		}
+		int i = (int) h & mask;
+		T item = (T) items[i];
+		items[i] = null;
+		head = h + 1;
+		if (producerWaiting) {
+			notifyAll();
+		}
+		return item;
+	}
+
+	/**
+	 * Remove every item, adding them to the list oldest first.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void drainTo(ArrayList<T> list) {
+		long h = head;
+		long t = tail;
+		for (; h < t; h++) {
+			int i = (int) h & mask;
+			list.add((T) items[i]);
+			items[i] = null;
+		}
+		head = h;
+		if (producerWaiting) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Return true if the buffer has no items.
+	 */
+	boolean isEmpty() {
+		return head == tail;
+	}
+
+	/**
+	 * Get the number of items in the buffer.
+	 */
+	int size() {
+		long h = head;
+		return (int) (tail - h);
+	}
+
+	/**
+	 * Stop a producer that is waiting for room, and make every later offer that has to wait fail.
+	 */
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+}
@@ -1,7 +1,8 @@
 package jediahkatz.gameserver;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
 
 import processing.data.JSONArray;
 import processing.data.JSONObject;
@@ -10,22 +11,293 @@ import processing.data.JSONObject;
  * @author jediahkatz
  */
 class Room {
-	private final int id;
-	private final int capacity;
+	private int id;
+	private int capacity;
 	private JSONObject attributes = new JSONObject();
-	private Set<Integer> clientIds = new HashSet<>();
+	private final IntSet clientIds = new IntSet();
+	// The shard that owns this room
+	private final Shard shard;
+	// This room's place in the shard's index of open rooms, used only by the index
+	RoomIndex.Level level;
+	Room previousOpen;
+	Room nextOpen;
+	// Snapshots of the room that are rebuilt only after it changes, or null if it has changed
+	private JSONObject info;
+	private JSONObject attributesCopy;
+	// The response to a request for this room's info, cached by the server until the room changes
+	OutboundFrame infoResponse;
+	// When the room last became empty, used by the server to remove idle rooms
+	long emptySince;
+	// Clients to be sent this room's changes, who may belong to other shards
+	final IntSet subscribers = new IntSet();
+	// Changes that the subscribers haven't been sent yet, recorded only while there are subscribers
+	private boolean updated = false;
+	private final IntSet joined = new IntSet();
+	private final IntSet left = new IntSet();
+	private final LinkedHashSet<String> changedKeys = new LinkedHashSet<>();
+	private final LinkedHashSet<String> removedKeys = new LinkedHashSet<>();
+	// The state of each client in the room, by id. Each client's object is replaced rather than
+	// modified when it changes, so that snapshots can share them.
+	private JSONObject state = new JSONObject();
+	private boolean stateChanged = false;
+	// How many times per second the room sends its state, or 0 if it doesn't, and how many times it has
+	private int tickRate = 0;
+	private int tick = 0;
+	// Runs the room's ticks, scheduled by the server, or null if the tick rate is 0
+	ScheduledFuture<?> ticker;
 	
-	public Room(int roomId, int capacity) {
+	/**
+	 * Create a room and add it to its shard's index of open rooms.
+	 * @param roomId the unique id of the room
+	 * @param capacity the maximum number of clients in the room
+	 * @param shard the shard that owns the room
+	 */
+	public Room(int roomId, int capacity, Shard shard) {
+		this.shard = shard;
+		open(roomId, capacity);
+	}
+	
+	/**
+	 * Give the room an id and capacity and add it to its shard's index of open rooms.
+	 * A room that has been closed can be opened again, with a new id, instead of making a new one.
+	 * It starts out empty, without attributes or subscribers.
+	 * @param roomId the unique id of the room
+	 * @param capacity the maximum number of clients in the room
+	 */
+	void open(int roomId, int capacity) {
 		this.id = roomId;
 		this.capacity = capacity;
+		attributes = new JSONObject();
+		subscribers.clear();
+		info = null;
+		attributesCopy = null;
+		infoResponse = null;
+		state = new JSONObject();
+		stateChanged = false;
+		tickRate = 0;
+		tick = 0;
+		emptySince = System.nanoTime();
+		shard.openRooms.add(this);
+		shard.roomsVersion++;
 	}
 	
 	/**
-	 * Get the ids of all clients in the room as a set.
-	 * Warning: modifying this set will modify the room.
+	 * Take an empty room out of its shard's index of open rooms, and throw away any changes
+	 * that haven't been taken for its subscribers.
 	 */
-	public Set<Integer> getClientIds() {
-		return clientIds;
+	void close() {
+		takeUpdate();
+		setTicker(0, null);
+		shard.openRooms.remove(this);
+		shard.roomsVersion++;
+	}
+	
+	/**
+	 * Get a snapshot of the room's info, with "roomId", "capacity", "size", "attributes" and
+	 * "clientIds" keys. The same snapshot is returned until the room changes, so polling a room 
+	 * that hasn't changed costs nothing. Snapshots are never modified, so any shard may read one.
+	 */
+	JSONObject info() {
+		if (info == null) {
+			if (attributesCopy == null) {
+				attributesCopy = JSONObject.parse(attributes.toString());
+			}
+			JSONArray ids = new JSONArray();
+			for (int i = 0; i < size(); i++) {
+				ids.append(clientId(i));
+			}
+			info = new JSONObject();
+			info.setInt("roomId", id);
+			info.setInt("capacity", capacity);
+			info.setInt("size", size());
+			info.setJSONObject("attributes", attributesCopy);
+			info.setJSONArray("clientIds", ids);
+		}
+		return info;
+	}
+	
+	/**
+	 * Take the changes to this room since the last time this was called, for its subscribers.
+	 * Changes that cancel out, like a client joining and then leaving, are left out.
+	 * @return an update with the room's "roomId" and "size", and any of "joined" and "left" 
+	 *         client ids, changed "attributes" and "removed" attribute keys, or null if nothing 
+	 *         has changed. The room keeps no reference to it, so any shard may read it.
+	 */
+	JSONObject takeUpdate() {
+		if (!updated) {
+			return null;
+		}
+		updated = false;
+		JSONObject update = null;
+		if (joined.size() > 0 || left.size() > 0 || changedKeys.size() > 0 || removedKeys.size() > 0) {
+			update = new JSONObject();
+			update.setInt("roomId", id);
+			update.setInt("size", size());
+			if (joined.size() > 0) {
+				update.setJSONArray("joined", toJSONArray(joined));
+			}
+			if (left.size() > 0) {
+				update.setJSONArray("left", toJSONArray(left));
+			}
+			if (changedKeys.size() > 0) {
+				// The values come from the snapshot, which won't change along with the attributes
+				JSONObject snapshot = info().getJSONObject("attributes");
+				JSONObject changed = new JSONObject();
+				for (String key : changedKeys) {
+					JsonCodec.put(changed, key, snapshot.get(key));
+				}
+				update.setJSONObject("attributes", changed);
+			}
+			if (removedKeys.size() > 0) {
+				JSONArray removed = new JSONArray();
+				for (String key : removedKeys) {
+					removed.append(key);
+				}
+				update.setJSONArray("removed", removed);
+			}
+		}
+		joined.clear();
+		left.clear();
+		changedKeys.clear();
+		removedKeys.clear();
+		return update;
+	}
+	
+	/**
+	 * Set how many times per second the room sends its state, replacing the task that did so before.
+	 * @param tickRate the number of ticks per second, or 0 to stop ticking
+	 * @param ticker the task that runs the ticks, or null if the tick rate is 0
+	 */
+	void setTicker(int tickRate, ScheduledFuture<?> ticker) {
+		if (this.ticker != null) {
+			this.ticker.cancel(false);
+		}
+		this.tickRate = tickRate;
+		this.ticker = ticker;
+	}
+	
+	/**
+	 * Get how many times per second the room sends its state, or 0 if it doesn't.
+	 */
+	int tickRate() {
+		return tickRate;
+	}
+	
+	/**
+	 * Merge values into a client's part of the room's state, overwriting the keys it already has.
+	 * @param clientId the id of the client, which should be in the room
+	 * @param values the values to merge
+	 */
+	void updateState(int clientId, JSONObject values) {
+		String key = String.valueOf(clientId);
+		JSONObject merged = new JSONObject();
+		if (state.hasKey(key)) {
+			copyInto(merged, state.getJSONObject(key));
+		}
+		copyInto(merged, values);
+		state.setJSONObject(key, merged);
+		stateChanged = true;
+	}
+	
+	/**
+	 * Advance the room to its next tick, and take a snapshot of its state if it has changed since
+	 * the last snapshot. Ticks without changes are counted but not sent, so the tick numbers of
+	 * consecutive snapshots may skip some.
+	 * @return a snapshot with the room's "roomId", "tick", "tickRate" and the "state" of each client
+	 *         by id, or null if the state hasn't changed. The room keeps no reference to it, 
+	 *         so any shard may read it.
+	 */
+	JSONObject tick() {
+		tick++;
+		if (!stateChanged) {
+			return null;
+		}
+		stateChanged = false;
+		// The clients' objects are never modified, so only the outer object has to be copied
+		JSONObject states = new JSONObject();
+		copyInto(states, state);
+		JSONObject snapshot = new JSONObject();
+		snapshot.setInt("roomId", id);
+		snapshot.setInt("tick", tick);
+		snapshot.setInt("tickRate", tickRate);
+		snapshot.setJSONObject("state", states);
+		return snapshot;
+	}
+	
+	/** Helper method to copy every key of one object into another. **/
+	private static void copyInto(JSONObject to, JSONObject from) {
+		for (Object key : from.keys()) {
+			JsonCodec.put(to, (String) key, from.get((String) key));
+		}
+	}
+	
+	/** Helper method to copy a set of ids into a JSONArray. **/
+	private static JSONArray toJSONArray(IntSet ids) {
+		JSONArray array = new JSONArray();
+		for (int i = 0; i < ids.size(); i++) {
+			array.append(ids.get(i));
+		}
+		return array;
+	}
+	
+	/**
+	 * Record that an attribute has been set, for the subscribers.
+	 */
+	private void attributeChanged(String key) {
+		changed(true);
+		if (subscribers.size() > 0) {
+			removedKeys.remove(key);
+			changedKeys.add(key);
+			updated();
+		}
+	}
+	
+	/**
+	 * Queue this room to have its changes sent to its subscribers at the end of the shard's
+	 * current iteration, unless it is queued already.
+	 */
+	private void updated() {
+		if (!updated) {
+			updated = true;
+			shard.updatedRooms.add(this);
+		}
+	}
+	
+	/**
+	 * Throw away the snapshots of this room, and let the shard know that one of its rooms has changed.
+	 * @param attributesChanged true if the attributes have changed, rather than only the clients
+	 */
+	private void changed(boolean attributesChanged) {
+		info = null;
+		infoResponse = null;
+		if (attributesChanged) {
+			attributesCopy = null;
+		}
+		shard.roomsVersion++;
+	}
+	
+	/**
+	 * Get the id of one of the clients in the room. To go through every client without
+	 * allocating anything, call this for each index from 0 up to the size of the room.
+	 * The order changes whenever a client leaves.
+	 * @param index the index of the client, which must be less than the size of the room
+	 */
+	public int clientId(int index) {
+		return clientIds.get(index);
+	}
+	
+	/**
+	 * Get the ids of all clients in the room, copied into a new array.
+	 */
+	public int[] clientIds() {
+		return clientIds.toArray();
+	}
+	
+	/**
+	 * Return true if the given client is in this room.
+	 */
+	public boolean hasClient(int clientId) {
+		return clientIds.contains(clientId);
 	}
 	
 	/**
@@ -36,14 +308,44 @@ class Room {
 		if (isFull()) {
 			throw new IllegalStateException("Room full");
 		}
+		int oldSize = size();
 		clientIds.add(clientId);
+		shard.openRooms.resized(this, oldSize);
+		if (size() != oldSize) {
+			changed(false);
+			if (subscribers.size() > 0) {
+				if (left.contains(clientId)) {
+					left.remove(clientId);
+				} else {
+					joined.add(clientId);
+				}
+				updated();
+			}
+		}
 	}
 	
 	/**
 	 * Remove a client from this room.
 	 */
 	public void removeClient(int clientId) {
+		int oldSize = size();
 		clientIds.remove(clientId);
+		shard.openRooms.resized(this, oldSize);
+		if (state.hasKey(String.valueOf(clientId))) {
+			state.remove(String.valueOf(clientId));
+			stateChanged = true;
+		}
+		if (size() != oldSize) {
+			changed(false);
+			if (subscribers.size() > 0) {
+				if (joined.contains(clientId)) {
+					joined.remove(clientId);
+				} else {
+					left.add(clientId);
+				}
+				updated();
+			}
+		}
 	}
 	
 	/**
@@ -86,7 +388,25 @@ class Room {
 	 * @param attributes the object to set as the new attributes
 	 */
 	public void setAttributes(JSONObject attributes) {
+		JSONObject oldAttributes = this.attributes;
 		this.attributes = attributes;
+		changed(true);
+		if (subscribers.size() > 0) {
+			for (Object key : oldAttributes.keys()) {
+				if (!attributes.hasKey((String) key)) {
+					changedKeys.remove(key);
+					removedKeys.add((String) key);
+				}
+			}
+			for (Object key : attributes.keys()) {
+				if (!oldAttributes.hasKey((String) key) 
+						|| !Objects.equals(oldAttributes.get((String) key), attributes.get((String) key))) {
+					removedKeys.remove(key);
+					changedKeys.add((String) key);
+				}
+			}
+			updated();
+		}
 	}
 	
 	/**
@@ -96,6 +416,7 @@ class Room {
 	 */
 	public void putAttribute(String key, int value) {
 		this.attributes.setInt(key, value);
+		attributeChanged(key);
 	}
 	
 	/**
@@ -105,6 +426,7 @@ class Room {
 	 */
 	public void putAttribute(String key, String value) {
 		this.attributes.setString(key, value);
+		attributeChanged(key);
 	}
 	
 	/**
@@ -114,6 +436,7 @@ class Room {
 	 */
 	public void putAttribute(String key, boolean value) {
 		this.attributes.setBoolean(key, value);
+		attributeChanged(key);
 	}
 	
 	/**
@@ -123,6 +446,7 @@ class Room {
 	 */
 	public void putAttribute(String key, JSONObject value) {
 		this.attributes.setJSONObject(key, value);
+		attributeChanged(key);
 	}
 	
 	/**
@@ -132,6 +456,7 @@ class Room {
 	 */
 	public void putAttribute(String key, JSONArray value) {
 		this.attributes.setJSONArray(key, value);
+		attributeChanged(key);
 	}
 	
 	/**
@@ -141,6 +466,7 @@ class Room {
 	 */
 	public void putAttribute(String key, float value) {
 		this.attributes.setFloat(key, value);
+		attributeChanged(key);
 	}
 	
 	/**
@@ -150,6 +476,7 @@ class Room {
 	 */
 	public void putAttribute(String key, double value) {
 		this.attributes.setDouble(key, value);
+		attributeChanged(key);
 	}
 	
 	/**
@@ -159,6 +486,7 @@ class Room {
 	 */
 	public void putAttribute(String key, long value) {
 		this.attributes.setLong(key, value);
+		attributeChanged(key);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+package jediahkatz.gameserver;
+
+/**
+ * An index of a shard's rooms that aren't full, grouped by capacity and ordered by how many
+ * clients are in them, so that autojoin can find the fullest open room of a given capacity
+ * in constant time. Rooms tell the index whenever a client joins or leaves.
+ * <p>
+ * The open rooms of each capacity are kept in levels, one for each size that some room has,
+ * linked from the fullest level down. Since a room's size only ever changes by one, a room only
+ * ever moves to a neighbouring level, or in or out at the ends, so every update is constant time.
+ * @author jediahkatz
+ */
+class RoomIndex {
+	// The open rooms of each capacity, by capacity
+	private final IntMap<Capacity> capacities = new IntMap<>();
+
+	/** The levels of open rooms that share a capacity. **/
+	private static class Capacity {
+		Level fullest;
+		Level emptiest;
+	}
+
+	/** The open rooms that share a capacity and a size, in a doubly linked list. **/
+	static class Level {
+		final int size;
+		Level fuller;
+		Level emptier;
+		Room first;
+
+		Level(int size) {
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Get the fullest room with the given capacity that isn't full yet.
+	 * @return the room, or null if there are no open rooms with that capacity
+	 */
+	Room fullest(int capacity) {
+		Capacity rooms = capacities.get(capacity);
+		return rooms == null ? null : rooms.fullest.first;
+	}
+
+	/**
+	 * Add a room to the index, if it isn't full.
+	 */
+	void add(Room room) {
+		if (room.isFull()) {
+			return;
+		}
+		Capacity rooms = capacities.get(room.capacity());
+		if (rooms == null) {
+			rooms = new Capacity();
+			capacities.put(room.capacity(), rooms);
+		}
+		int size = room.size();
+		// Rooms are added when they're new, at the bottom, or have just stopped being full, at the top
+		Level below;
+		if (rooms.emptiest == null || size <= rooms.emptiest.size) {
+			below = rooms.emptiest != null && rooms.emptiest.size == size ? rooms.emptiest : null;
+		} else {
+			below = rooms.fullest;
+			while (below.size > size) {
+				below = below.emptier;
+			}
+		}
+		if (below != null && below.size == size) {
+			link(room, below);
+		} else {
+			link(room, insertAbove(rooms, below, size));
+		}
+	}
+
+	/**
+	 * Take a room out of the index, if it's in it.
+	 */
+	void remove(Room room) {
+		if (room.level == null) {
+			return;
+		}
+		Capacity rooms = capacities.get(room.capacity());
+		unlink(room, rooms);
+		if (rooms.fullest == null) {
+			capacities.remove(room.capacity());
+		}
+	}
+	
+	/**
+	 * Update the index after a client has joined or left a room.
+	 * @param room the room, which has just changed size
+	 * @param oldSize the size of the room before the change
+	 */
+	void resized(Room room, int oldSize) {
+		int size = room.size();
+		if (size == oldSize) {
+			return;
+		}
+		Level level = room.level;
+		if (level == null) {
+			// The room was full
+			add(room);
+			return;
+		}
+		Capacity rooms = capacities.get(room.capacity());
+		Level fuller = level.fuller;
+		Level emptier = level.emptier;
+		boolean removed = unlink(room, rooms);
+		if (!room.isFull()) {
+			// Move the room to the next level up or down, making it if there isn't one
+			if (size > oldSize) {
+				if (fuller != null && fuller.size == size) {
+					link(room, fuller);
+				} else {
+					link(room, insertAbove(rooms, removed ? emptier : level, size));
+				}
+			} else {
+				if (emptier != null && emptier.size == size) {
+					link(room, emptier);
+				} else {
+					link(room, insertAbove(rooms, emptier, size));
+				}
+			}
+		}
+		if (rooms.fullest == null) {
+			capacities.remove(room.capacity());
+		}
+	}
+
+	/**
+	 * Create a level for the given size just above another level, or at the bottom if the
+	 * other level is null.
+	 */
+	private Level insertAbove(Capacity rooms, Level below, int size) {
+		Level level = new Level(size);
+		level.emptier = below;
+		level.fuller = below == null ? rooms.emptiest : below.fuller;
+		if (level.emptier == null) {
+			rooms.emptiest = level;
+		} else {
+			level.emptier.fuller = level;
+		}
+		if (level.fuller == null) {
+			rooms.fullest = level;
+		} else {
+			level.fuller.emptier = level;
+		}
+		return level;
+	}
+
+	/** Helper method to add a room to the front of a level's list. **/
+	private void link(Room room, Level level) {
+		room.level = level;
+		room.previousOpen = null;
+		room.nextOpen = level.first;
+		if (level.first != null) {
+			level.first.previousOpen = room;
+		}
+		level.first = room;
+	}
+
+	/**
+	 * Helper method to take a room out of its level's list, and remove the level if that
+	 * leaves it empty.
+	 * @return true if the level was removed
+	 */
+	private boolean unlink(Room room, Capacity rooms) {
+		Level level = room.level;
+		if (room.previousOpen != null) {
+			room.previousOpen.nextOpen = room.nextOpen;
+		} else {
+			level.first = room.nextOpen;
+		}
+		if (room.nextOpen != null) {
+			room.nextOpen.previousOpen = room.previousOpen;
+		}
+		room.level = null;
+		room.previousOpen = null;
+		room.nextOpen = null;
+
+		if (level.first == null) {
+			if (level.fuller != null) {
+				level.fuller.emptier = level.emptier;
+			} else {
+				rooms.fullest = level.emptier;
+			}
+			if (level.emptier != null) {
+				level.emptier.fuller = level.fuller;
+			} else {
+				rooms.emptiest = level.fuller;
+			}
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,18 @@
+package jediahkatz.gameserver;
+
+/**
+ * When the server removes rooms that nobody is using. Once a room has been removed,
+ * its id is never given to another room, so requests that use the old id fail as if
+ * the room never existed. Since ids are never reused, a server can create at most
+ * Integer.MAX_VALUE + 1 rooms over its lifetime, split evenly between its threads.
+ * After that, requests to create a room fail.
+ * @author jediahkatz
+ */
+public enum RoomLifetime {
+	/** Keep every room for as long as the server runs. **/
+	PINNED,
+	/** Remove a room as soon as its last client leaves. **/
+	REMOVE_WHEN_EMPTY,
+	/** Remove a room once it has been empty for the idle timeout. **/
+	IDLE_TIMEOUT,
+}
@@ -0,0 +1,277 @@
+package jediahkatz.gameserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+/**
+ * A search for rooms by their attributes, to be passed to GameClient.queryRooms.
+ * Every condition must hold for a room to match. Each method returns the query itself,
+ * so conditions can be chained:
+ * <pre>
+ * RoomQuery query = new RoomQuery()
+ *     .whereEquals("mode", "ranked")
+ *     .whereBetween("elo", 1200, 1400)
+ *     .onlyOpen()
+ *     .sortBy("elo")
+ *     .limit(10);
+ * </pre>
+ * The server keeps an index of room attributes, so a query costs about as much as the number
+ * of rooms that match its most selective condition.
+ * @author jediahkatz
+ */
+public class RoomQuery {
+	/** The number of rooms returned if no limit is set. **/
+	public static final int DEFAULT_LIMIT = 20;
+	/** The largest number of rooms that a query can return. **/
+	public static final int MAX_LIMIT = 100;
+
+	final List<Condition> conditions = new ArrayList<>();
+	boolean onlyOpen = false;
+	String sortKey = null;
+	boolean descending = false;
+	int limit = DEFAULT_LIMIT;
+
+	/**
+	 * A condition on a single attribute: either that it equals a value, or that it is
+	 * a number in a range.
+	 */
+	static class Condition {
+		final String key;
+		// The value the attribute must equal, or null if this is a range
+		final Object value;
+		final double min;
+		final double max;
+
+		Condition(String key, Object value, double min, double max) {
+			this.key = key;
+			this.value = value;
+			this.min = min;
+			this.max = max;
+		}
+
+		/**
+		 * Return true if an attribute value, as returned by AttributeIndex.normalize, meets this condition.
+		 */
+		boolean matches(Object attribute) {
+			if (value != null) {
+				return value.equals(attribute);
+			}
+			if (attribute instanceof Double) {
+				double number = (Double) attribute;
+				return number >= min && number <= max;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Only match rooms whose attribute has the given value.
+	 */
+	public RoomQuery whereEquals(String key, String value) {
+		conditions.add(new Condition(key, value, 0, 0));
+		return this;
+	}
+
+	/**
+	 * Only match rooms whose attribute has the given value.
+	 */
+	public RoomQuery whereEquals(String key, boolean value) {
+		conditions.add(new Condition(key, value, 0, 0));
+		return this;
+	}
+
+	/**
+	 * Only match rooms whose attribute has the given value.
+	 */
+	public RoomQuery whereEquals(String key, double value) {
+		conditions.add(new Condition(key, value, 0, 0));
+		return this;
+	}
+
+	/**
+	 * Only match rooms whose attribute is a number between min and max, inclusive.
+	 */
+	public RoomQuery whereBetween(String key, double min, double max) {
+		conditions.add(new Condition(key, null, min, max));
+		return this;
+	}
+
+	/**
+	 * Only match rooms whose attribute is a number no less than min.
+	 */
+	public RoomQuery whereAtLeast(String key, double min) {
+		return whereBetween(key, min, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Only match rooms whose attribute is a number no more than max.
+	 */
+	public RoomQuery whereAtMost(String key, double max) {
+		return whereBetween(key, Double.NEGATIVE_INFINITY, max);
+	}
+
+	/**
+	 * Only match rooms that aren't full.
+	 */
+	public RoomQuery onlyOpen() {
+		onlyOpen = true;
+		return this;
+	}
+
+	/**
+	 * Return the matching rooms in increasing order of an attribute.
+	 * Rooms that don't have the attribute come last.
+	 */
+	public RoomQuery sortBy(String key) {
+		return sortBy(key, false);
+	}
+
+	/**
+	 * Return the matching rooms in order of an attribute.
+	 * Rooms that don't have the attribute come last.
+	 * @param key the attribute to sort by
+	 * @param descending true to return the rooms in decreasing order
+	 */
+	public RoomQuery sortBy(String key, boolean descending) {
+		sortKey = key;
+		this.descending = descending;
+		return this;
+	}
+
+	/**
+	 * Return at most this many rooms. The limit can't be more than MAX_LIMIT.
+	 */
+	public RoomQuery limit(int limit) {
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Return true if a room meets every condition of this query.
+	 */
+	boolean matches(Room room) {
+		if (onlyOpen && room.isFull()) {
+			return false;
+		}
+		JSONObject attributes = room.getAttributes();
+		for (Condition condition : conditions) {
+			Object value = valueOf(attributes, condition.key);
+			if (value == null || !condition.matches(value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compare two rooms' attributes by the sort key, in the order the rooms should be returned.
+	 * Numbers come before strings, which come before booleans, and rooms whose value for the key
+	 * isn't indexed come last.
+	 */
+	int compare(JSONObject attributes, JSONObject otherAttributes) {
+		Object value = valueOf(attributes, sortKey);
+		Object other = valueOf(otherAttributes, sortKey);
+		if (value == null || other == null) {
+			return value == null ? (other == null ? 0 : 1) : -1;
+		}
+		int order = rank(value) - rank(other);
+		if (order == 0) {
+			if (value instanceof Double) {
+				order = Double.compare((Double) value, (Double) other);
+			} else if (value instanceof String) {
+				order = ((String) value).compareTo((String) other);
+			} else {
+				order = Boolean.compare((Boolean) value, (Boolean) other);
+			}
+		}
+		return descending ? -order : order;
+	}
+
+	/** Helper method to order values of different types. **/
+	private static int rank(Object value) {
+		return value instanceof Double ? 0 : value instanceof String ? 1 : 2;
+	}
+
+	/**
+	 * Helper method to get an attribute as returned by AttributeIndex.normalize,
+	 * or null if the room doesn't have it.
+	 */
+	private static Object valueOf(JSONObject attributes, String key) {
+		return attributes.hasKey(key) ? AttributeIndex.normalize(attributes.get(key)) : null;
+	}
+
+	/**
+	 * Get this query as the body of a QUERY_ROOMS request.
+	 */
+	JSONObject toJSON() {
+		JSONObject data = new JSONObject();
+		JSONArray filters = new JSONArray();
+		for (Condition condition : conditions) {
+			JSONObject filter = new JSONObject();
+			filter.setString("key", condition.key);
+			if (condition.value instanceof String) {
+				filter.setString("equals", (String) condition.value);
+			} else if (condition.value instanceof Boolean) {
+				filter.setBoolean("equals", (Boolean) condition.value);
+			} else if (condition.value instanceof Double) {
+				filter.setDouble("equals", (Double) condition.value);
+			} else {
+				if (condition.min != Double.NEGATIVE_INFINITY) {
+					filter.setDouble("min", condition.min);
+				}
+				if (condition.max != Double.POSITIVE_INFINITY) {
+					filter.setDouble("max", condition.max);
+				}
+			}
+			filters.append(filter);
+		}
+		data.setJSONArray("filters", filters);
+		data.setBoolean("open", onlyOpen);
+		if (sortKey != null) {
+			data.setString("sort", sortKey);
+			data.setBoolean("descending", descending);
+		}
+		data.setInt("limit", limit);
+		return data;
+	}
+
+	/**
+	 * Read a query from the body of a QUERY_ROOMS request.
+	 * @throws RuntimeException if the request is malformed
+	 */
+	static RoomQuery parse(JSONObject data) {
+		RoomQuery query = new RoomQuery();
+		if (data.hasKey("filters")) {
+			JSONArray filters = data.getJSONArray("filters");
+			for (int i = 0; i < filters.size(); i++) {
+				JSONObject filter = filters.getJSONObject(i);
+				String key = filter.getString("key");
+				if (filter.hasKey("equals")) {
+					Object value = AttributeIndex.normalize(filter.get("equals"));
+					if (value == null) {
+						throw new RuntimeException("Rooms can only be queried by strings, numbers and booleans.");
+					}
+					query.conditions.add(new Condition(key, value, 0, 0));
+				} else {
+					double min = filter.hasKey("min") ? filter.getDouble("min") : Double.NEGATIVE_INFINITY;
+					double max = filter.hasKey("max") ? filter.getDouble("max") : Double.POSITIVE_INFINITY;
+					query.whereBetween(key, min, max);
+				}
+			}
+		}
+		if (data.hasKey("open") && data.getBoolean("open")) {
+			query.onlyOpen();
+		}
+		if (data.hasKey("sort")) {
+			query.sortBy(data.getString("sort"), data.hasKey("descending") && data.getBoolean("descending"));
+		}
+		if (data.hasKey("limit")) {
+			query.limit(data.getInt("limit"));
+		}
+		query.limit = Math.max(0, Math.min(query.limit, MAX_LIMIT));
+		return query;
+	}
+}
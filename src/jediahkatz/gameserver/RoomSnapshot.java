@@ -0,0 +1,58 @@
+package jediahkatz.gameserver;
+
+import processing.data.JSONObject;
+
+/**
+ * An uninstantiable wrapper class that holds the state of every client in a room at one of
+ * the room's ticks. Rooms only send a snapshot on ticks when their state has changed, so the
+ * tick numbers of consecutive snapshots may skip some. Dividing the tick number by the tick
+ * rate gives the time of the snapshot in seconds, which can be used to interpolate between them.
+ * @author jediahkatz
+ *
+ */
+public class RoomSnapshot {
+	private final int roomId;
+	private final int tick;
+	private final int tickRate;
+	private final JSONObject state;
+
+	RoomSnapshot(int roomId, int tick, int tickRate, JSONObject state) {
+		this.roomId = roomId;
+		this.tick = tick;
+		this.tickRate = tickRate;
+		this.state = state;
+	}
+
+	/** Get the unique id of the room. **/
+	public int roomId() {
+		return roomId;
+	}
+
+	/** Get the number of ticks the room had run when the snapshot was taken. **/
+	public int tick() {
+		return tick;
+	}
+
+	/** Get how many times per second the room ticks. **/
+	public int tickRate() {
+		return tickRate;
+	}
+
+	/** Get a JSONObject containing the state of each client in the room that has sent any,
+	 * with the client ids as keys.
+	**/
+	public JSONObject state() {
+		return state;
+	}
+
+	/** Get the state of a client in the room, or null if the client hasn't sent any. **/
+	public JSONObject state(int clientId) {
+		String key = String.valueOf(clientId);
+		return state.hasKey(key) ? state.getJSONObject(key) : null;
+	}
+
+	@Override
+	public String toString() {
+		return "Room " + roomId + " snapshot (tick " + tick + " at " + tickRate + "/s): " + state.toString();
+	}
+}
@@ -0,0 +1,78 @@
+package jediahkatz.gameserver;
+
+import java.util.Arrays;
+
+import processing.data.JSONObject;
+
+/**
+ * An uninstantiable wrapper class that holds the changes to a room that a client
+ * is subscribed to. Each update only holds what changed since the previous one.
+ * @author jediahkatz
+ *
+ */
+public class RoomUpdate {
+	private final int roomId;
+	private final int size;
+	private final int[] joined;
+	private final int[] left;
+	private final JSONObject attributes;
+	private final String[] removed;
+	private final boolean closed;
+
+	RoomUpdate(int roomId, int size, int[] joined, int[] left, JSONObject attributes, String[] removed,
+			boolean closed) {
+		this.roomId = roomId;
+		this.size = size;
+		this.joined = joined;
+		this.left = left;
+		this.attributes = attributes;
+		this.removed = removed;
+		this.closed = closed;
+	}
+
+	/** Get the unique id of the room that changed. **/
+	public int roomId() {
+		return roomId;
+	}
+
+	/** Get the number of clients in the room after the changes. **/
+	public int size() {
+		return size;
+	}
+
+	/** Get the ids of the clients that joined the room, which may be empty. **/
+	public int[] joined() {
+		return joined;
+	}
+
+	/** Get the ids of the clients that left the room, which may be empty. **/
+	public int[] left() {
+		return left;
+	}
+
+	/** Get a JSONObject containing only the attributes that were set, with their new values.
+	 * It is empty if no attributes were set.
+	**/
+	public JSONObject changedAttributes() {
+		return attributes;
+	}
+
+	/** Get the keys of the attributes that were removed, which may be empty. **/
+	public String[] removedAttributes() {
+		return removed;
+	}
+
+	/** Return true if the room has been removed by the server. This is the last update
+	 * for the room, and its id is no longer valid.
+	**/
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public String toString() {
+		return "Room " + roomId + " update (size " + size + "): {\nJoined: " + Arrays.toString(joined)
+				+ "\nLeft: " + Arrays.toString(left) + "\nAttributes: " + attributes.toString()
+				+ "\nRemoved: " + Arrays.toString(removed) + (closed ? "\nClosed" : "") + "\n}";
+	}
+}
@@ -0,0 +1,208 @@
+package jediahkatz.gameserver;
+
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import processing.data.JSONArray;
+
+/**
+ * The rooms and clients owned by one server thread. A shard's state is only ever touched by
+ * its own thread; other threads hand it work by posting tasks to its inbox.
+ * A room belongs to the shard whose index is its id modulo the number of shards, and likewise
+ * a client belongs to the shard that owns its connection.
+ * <p>
+ * A shard can instead be shared by many threads, in which case it acts as one stripe of 
+ * the server's state. Whichever thread posts a task then runs the shard's tasks itself while
+ * holding the shard's lock.
+ * @author jediahkatz
+ */
+class Shard {
+	final int index;
+	private final int count;
+	// Incrementing counters, which are turned into ids that map back to this shard
+	private int nextClientId = 0;
+	private int nextRoomId = 0;
+	// Data structures storing the rooms/clients that belong to this shard
+	final IntMap<Room> rooms = new IntMap<>();
+	final IntMap<Connection> clients = new IntMap<>();
+	// The rooms above that aren't full, for autojoin
+	final RoomIndex openRooms = new RoomIndex();
+	// The rooms above by the values of their attributes, for queries
+	final AttributeIndex roomAttributes = new AttributeIndex();
+	// Incremented whenever one of the rooms above is created or changes
+	int roomsVersion = 0;
+	// Snapshots of the info of all the rooms above, and the version of the rooms they were taken at
+	JSONArray roomsInfo;
+	int roomsInfoVersion = -1;
+	// The last GET_ROOMS_INFO response this shard sent, and the version of each shard it was built from
+	OutboundFrame roomsInfoResponse;
+	int[] roomsInfoVersions;
+	// Rooms above that were empty at the given times, oldest first, to be removed if they stay empty
+	final ArrayDeque<IdleRoom> idleRooms = new ArrayDeque<>();
+	// Rooms that have been removed, kept to be opened again instead of making new ones
+	final ArrayDeque<Room> roomPool = new ArrayDeque<>();
+	// Rooms above with changes that haven't been sent to their subscribers yet
+	final ArrayList<Room> updatedRooms = new ArrayList<>();
+	// Connections with queued frames that haven't been flushed yet
+	final ArrayList<Connection> unflushed = new ArrayList<>();
+	// Connections that went over the high watermark with the DISCONNECT policy
+	final ArrayList<Connection> slowConsumers = new ArrayList<>();
+	// Metrics, only written by this shard's thread
+	volatile long queuedBytes = 0;
+	volatile long framesDropped = 0;
+	volatile long bytesWritten = 0;
+	volatile long flushes = 0;
+	// Tasks posted by other threads, waiting to be run on this one
+	private final ConcurrentLinkedQueue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+	// Whether the selector has been woken up since the inbox was last emptied
+	private final AtomicBoolean signalled = new AtomicBoolean(false);
+	// The selector this shard's thread sleeps in, or null if the thread polls
+	private volatile Selector selector;
+	// Guards the shard when it is shared by many threads, or null if it has a thread of its own
+	private ReentrantLock lock;
+	// Flushes the shard's connections after its tasks have been run under the lock
+	private Consumer<Shard> flusher;
+	// The shards with tasks that the current thread has posted but not run yet
+	private static final ThreadLocal<ArrayDeque<Shard>> pending = ThreadLocal.withInitial(ArrayDeque::new);
+
+	/** A room that became empty at a certain time. **/
+	static class IdleRoom {
+		final int roomId;
+		final long since;
+		
+		IdleRoom(int roomId, long since) {
+			this.roomId = roomId;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * @param index the index of this shard
+	 * @param count the total number of shards
+	 */
+	Shard(int index, int count) {
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Wake up the given selector whenever a task is posted, so that the thread sleeping in it
+	 * runs the task right away.
+	 */
+	void wakeUp(Selector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Share this shard between many threads instead of giving it a thread of its own.
+	 * This must be called before any tasks are posted.
+	 * @param flusher flushes the shard's connections, called with the lock held
+	 */
+	void share(Consumer<Shard> flusher) {
+		this.lock = new ReentrantLock();
+		this.flusher = flusher;
+	}
+	
+	/**
+	 * Acquire this shared shard's lock.
+	 */
+	void lock() {
+		lock.lock();
+	}
+	
+	/**
+	 * Release this shared shard's lock.
+	 */
+	void unlock() {
+		lock.unlock();
+	}
+	
+	/**
+	 * Return a new client id that belongs to this shard.
+	 * @throws IllegalStateException if the shard has run out of ids
+	 */
+	int nextClientId() {
+		int id = toId(nextClientId, "client");
+		nextClientId++;
+		return id;
+	}
+
+	/**
+	 * Return a new room id that belongs to this shard.
+	 * @throws IllegalStateException if the shard has run out of ids
+	 */
+	int nextRoomId() {
+		int id = toId(nextRoomId, "room");
+		nextRoomId++;
+		return id;
+	}
+	
+	/**
+	 * Helper method to turn a counter into an id that maps back to this shard. Ids are never
+	 * reused, so once they pass Integer.MAX_VALUE there are none left, rather than wrapping
+	 * around to negative ids or to ids that are already taken.
+	 */
+	private int toId(int counter, String kind) {
+		try {
+			return Math.addExact(Math.multiplyExact(counter, count), index);
+		} catch (ArithmeticException e) {
+			throw new IllegalStateException("Shard " + index + " has run out of " + kind + " ids.", e);
+		}
+	}
+
+	/**
+	 * Post a task to be run on this shard's thread. This may be called from any thread.
+	 * Tasks posted by the same thread are run in the order they were posted.
+	 * If the shard is shared, the task has been run by the time this returns, unless it was
+	 * posted from another task. Then it runs once that task is done, so that a thread never 
+	 * holds more than one shard's lock.
+	 */
+	void post(Runnable task) {
+		inbox.add(task);
+		if (lock != null) {
+			ArrayDeque<Shard> shards = pending.get();
+			shards.add(this);
+			if (shards.size() > 1) {
+				// Called from a task further up this thread's stack, which will run it afterwards
+				return;
+			}
+			Shard shard;
+			while ((shard = shards.peek()) != null) {
+				shard.lock();
+				try {
+					shard.runTasks();
+					shard.flusher.accept(shard);
+				} finally {
+					shard.unlock();
+					shards.poll();
+				}
+			}
+			return;
+		}
+		Selector selector = this.selector;
+		if (selector != null && signalled.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Run every task that has been posted to this shard. Only this shard's thread may call this,
+	 * or the thread holding its lock.
+	 */
+	void runTasks() {
+		signalled.set(false);
+		Runnable task;
+		while ((task = inbox.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// A bad request shouldn't take down the rest of the shard
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package jediahkatz.gameserver;
+
+/**
+ * What the server does when a client isn't reading its data fast enough, and the data
+ * queued for it goes over the high watermark. Responses to a client's own requests
+ * are never dropped; only messages from other clients are.
+ * @author jediahkatz
+ */
+public enum SlowConsumerPolicy {
+	/** Drop the oldest queued messages until the queue is back down to the low watermark. **/
+	DROP_OLDEST,
+	/** Drop new messages until the queue is back down to the low watermark. **/
+	DROP_NEWEST,
+	/** Disconnect the client. **/
+	DISCONNECT,
+}
@@ -0,0 +1,24 @@
+package jediahkatz.gameserver;
+
+/**
+ * The networking layer that a GameServer uses to talk to its clients.
+ * @author jediahkatz
+ */
+public enum Transport {
+	/** 
+	 * Poll a processing.net Server for data. The sketch must forward its serverEvent 
+	 * and disconnectEvent calls to the GameServer.
+	**/
+	PROCESSING,
+	/** 
+	 * Serve clients over non-blocking sockets from threads that only wake up when a client
+	 * has sent data. Connections and disconnections are detected automatically.
+	**/
+	NIO,
+	/**
+	 * Serve each client from threads of its own over blocking sockets. The threads are
+	 * virtual threads on Java 21 and later, so this scales to many mostly idle clients.
+	 * Connections and disconnections are detected automatically.
+	**/
+	BLOCKING,
+}
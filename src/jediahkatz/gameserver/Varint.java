@@ -0,0 +1,39 @@
+package jediahkatz.gameserver;
+
+/**
+ * Helper methods for variable-length integers: 7 bits per byte, least significant group first,
+ * with the high bit set on every byte except the last.
+ * @author jediahkatz
+ */
+final class Varint {
+	
+	private Varint() {}
+	
+	/**
+	 * Get the number of bytes needed to write a non-negative value.
+	 */
+	static int size(int value) {
+		int size = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	/**
+	 * Write a non-negative value into an array.
+	 * @param value the value to write
+	 * @param buf the array to write into
+	 * @param pos the index to start writing at
+	 * @return the index after the last byte written
+	 */
+	static int write(int value, byte[] buf, int pos) {
+		while ((value & ~0x7f) != 0) {
+			buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+}